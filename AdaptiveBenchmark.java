@@ -0,0 +1,142 @@
+package com.pseudoyu.tree.rb;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * 比较 Zipf 分布的读取负载下，开启自适应模式前后每次查找的平均下降深度和耗时。
+ * <p>
+ * 用法：{@code java com.pseudoyu.tree.rb.AdaptiveBenchmark [--name=value ...]}，可用的参数：
+ * <ul>
+ *     <li>{@code entries}：树中的键数，默认 1000000</li>
+ *     <li>{@code reads}：每个阶段的读取次数，默认 10000000</li>
+ *     <li>{@code skew}：Zipf 分布的指数，默认 1.0；越大越集中在少数热点键上</li>
+ *     <li>{@code seed}：随机数种子，默认 42</li>
+ * </ul>
+ * 热度排名到键的映射是随机打乱的，热点键分散在整个键空间中，且与插入顺序无关。
+ * 先在普通的树上测量一轮，然后开启自适应模式（周期为 entries）预热一轮并调用一次
+ * {@link RedBlackTree#restructureIfNeeded()}，再测量一轮（含读取计数的开销），
+ * 最后再重建一次、关闭自适应模式，单独测量重建后的形状。重建在读取之外进行，耗时单独输出。
+ * 下降深度是从根到目标节点经过的链接数，由 {@link RedBlackTree#depth} 按同一组读取序列统计。
+ */
+public class AdaptiveBenchmark {
+
+    public static void main(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("entries", "1000000");
+        options.put("reads", "10000000");
+        options.put("skew", "1.0");
+        options.put("seed", "42");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0 || !options.containsKey(arg.substring(2, eq))) {
+                throw new IllegalArgumentException("unknown argument: " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+
+        int entries = Integer.parseInt(options.get("entries"));
+        int reads = Integer.parseInt(options.get("reads"));
+        double skew = Double.parseDouble(options.get("skew"));
+        SplittableRandom random = new SplittableRandom(Long.parseLong(options.get("seed")));
+
+        // 热度排名 i 的键是 byRank[i]
+        int[] byRank = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            byRank[i] = i;
+        }
+        for (int i = entries - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = byRank[i];
+            byRank[i] = byRank[j];
+            byRank[j] = t;
+        }
+        double[] cdf = new double[entries];
+        double total = 0;
+        for (int i = 0; i < entries; i++) {
+            total += 1 / Math.pow(i + 1, skew);
+            cdf[i] = total;
+        }
+
+        RedBlackTree<Integer, Integer> tree = new RedBlackTree<>();
+        for (int i = 0; i < entries; i++) {
+            tree.put(i, i);
+        }
+
+        Phase before = run(tree, zipf(random, cdf, byRank, reads));
+        tree.enableAdaptive(entries);
+        run(tree, zipf(random, cdf, byRank, reads));
+        double rebuild = restructure(tree);
+        Phase after = run(tree, zipf(random, cdf, byRank, reads));
+        rebuild = Math.max(rebuild, restructure(tree));
+        // 停止计数后单独测量重建后的形状，不含计数的开销
+        tree.disableAdaptive();
+        Phase shaped = run(tree, zipf(random, cdf, byRank, reads));
+
+        System.out.println(String.format(Locale.ROOT, "entries=%d reads=%d skew=%.2f", entries, reads, skew));
+        System.out.println(String.format(Locale.ROOT, "%-10s %10s %10s %8s", "", "avg depth", "ns/get", "height"));
+        System.out.println(before.format("before"));
+        System.out.println(after.format("adaptive"));
+        System.out.println(shaped.format("reshaped"));
+        System.out.println(String.format(Locale.ROOT, "restructure: %.1f ms", rebuild));
+    }
+
+    // 在读取之外重建一次，返回耗时（毫秒）
+    private static double restructure(RedBlackTree<Integer, Integer> tree) {
+        long start = System.nanoTime();
+        tree.restructureIfNeeded();
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    // 按 Zipf 分布生成 n 次读取的键
+    private static int[] zipf(SplittableRandom random, double[] cdf, int[] byRank, int n) {
+        double total = cdf[cdf.length - 1];
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            int rank = Arrays.binarySearch(cdf, random.nextDouble() * total);
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            keys[i] = byRank[Math.min(rank, cdf.length - 1)];
+        }
+        return keys;
+    }
+
+    // 执行一轮读取并统计；深度在计时结束后按同一序列统计，不计入耗时
+    private static Phase run(RedBlackTree<Integer, Integer> tree, int[] workload) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int key : workload) {
+            Integer v = tree.get(key);
+            sink += v == null ? 0 : v;
+        }
+        long elapsed = System.nanoTime() - start;
+        long depth = 0;
+        for (int key : workload) {
+            depth += tree.depth(key);
+        }
+        if (sink == 42) {
+            System.out.print("");  // 防止读取被优化掉
+        }
+        return new Phase((double) depth / workload.length, (double) elapsed / workload.length, tree.height());
+    }
+
+    private static final class Phase {
+        private final double depth;
+        private final double nanos;
+        private final int height;
+
+        Phase(double depth, double nanos, int height) {
+            this.depth = depth;
+            this.nanos = nanos;
+            this.height = height;
+        }
+
+        String format(String name) {
+            return String.format(Locale.ROOT, "%-10s %10.2f %10.1f %8d", name, depth, nanos, height);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.pseudoyu.tree.rb;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 固定大小页面的缓冲池，使用 CLOCK 算法淘汰页面，脏页在淘汰或 {@link #flush()} 时写回文件。
+ * <p>
+ * {@link #page(long, boolean)} 返回的缓冲区只在下一次调用缓冲池之前有效，调用方不能跨调用持有它。
+ * 页号到帧的映射是以帧下标为内容的开放寻址散列表，查找页面不创建任何对象。
+ */
+final class BufferPool {
+
+    // 帧数的上限，保证散列表的长度（大于帧数两倍的 2 的幂）不超过 2^30
+    private static final int MAX_FRAMES = 1 << 28;
+
+    private final FileChannel channel;        // 页面文件
+    private final int pageSize;               // 页面大小（字节）
+    private final ByteBuffer[] frames;        // 缓存页面的帧
+    private final long[] pageOf;              // 每个帧中缓存的页号，-1 表示空闲
+    private final boolean[] dirty;            // 帧是否被修改过
+    private final boolean[] referenced;       // CLOCK 算法的访问位
+    private final int[] table;                // 页号到帧的散列表，保存帧下标加一，0 表示空槽
+    private int hand;                         // CLOCK 指针
+    private long lastPage = -1;               // 最近一次访问的页号及其帧，连续访问同一页时跳过散列表
+    private int lastFrame;
+
+    private long hits;                        // 命中次数
+    private long misses;                      // 未命中次数
+    private long evictions;                   // 淘汰次数
+    private long writes;                      // 写回磁盘的页面数
+
+    /**
+     * 创建缓冲池。
+     *
+     * @param channel     页面文件
+     * @param pageSize    页面大小（字节）
+     * @param budgetBytes 缓冲池可使用的内存上限（字节），至少会保留一个帧，最多 2^28 个帧
+     */
+    BufferPool(FileChannel channel, int pageSize, long budgetBytes) {
+        this.channel = channel;
+        this.pageSize = pageSize;
+        int capacity = (int) Math.max(1, Math.min(MAX_FRAMES, budgetBytes / pageSize));
+        this.frames = new ByteBuffer[capacity];
+        this.pageOf = new long[capacity];
+        this.dirty = new boolean[capacity];
+        this.referenced = new boolean[capacity];
+        this.table = new int[Integer.highestOneBit(capacity) << 2];
+        for (int i = 0; i < capacity; i++) {
+            pageOf[i] = -1;
+        }
+    }
+
+    /**
+     * 返回缓存给定页面的缓冲区，必要时从文件读入。
+     *
+     * @param pageNo   页号
+     * @param forWrite 调用方是否会修改页面
+     * @return 页面的缓冲区
+     * @throws UncheckedIOException 如果读写文件失败
+     */
+    ByteBuffer page(long pageNo, boolean forWrite) {
+        int frame;
+        if (pageNo == lastPage) {
+            frame = lastFrame;
+            hits++;
+        } else {
+            frame = find(pageNo);
+            if (frame >= 0) {
+                hits++;
+            } else {
+                misses++;
+                frame = load(pageNo);
+            }
+            lastPage = pageNo;
+            lastFrame = frame;
+        }
+        referenced[frame] = true;
+        if (forWrite) {
+            dirty[frame] = true;
+        }
+        return frames[frame];
+    }
+
+    // 为页面找到一个帧并从文件读入内容
+    private int load(long pageNo) {
+        int frame = victim();
+        ByteBuffer buf = frames[frame];
+        if (buf == null) {
+            buf = ByteBuffer.allocate(pageSize);
+            frames[frame] = buf;
+        } else {
+            remove(pageOf[frame]);
+            evictions++;
+            if (dirty[frame]) {
+                writeBack(frame);
+            }
+        }
+
+        buf.clear();
+        try {
+            long position = pageNo * pageSize;
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, position + buf.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // 文件末尾之后的部分视为全零
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0);
+        }
+        buf.clear();
+
+        pageOf[frame] = pageNo;
+        dirty[frame] = false;
+        insert(frame);
+        return frame;
+    }
+
+    // 页号在散列表中的初始槽位
+    private int home(long pageNo) {
+        long h = pageNo * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (table.length - 1);
+    }
+
+    // 返回缓存给定页面的帧下标，不在缓冲池中时返回 -1
+    private int find(long pageNo) {
+        int mask = table.length - 1;
+        for (int i = home(pageNo); table[i] != 0; i = (i + 1) & mask) {
+            if (pageOf[table[i] - 1] == pageNo) {
+                return table[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    // 把帧登记到散列表中，帧的页号已经写入 pageOf
+    private void insert(int frame) {
+        int mask = table.length - 1;
+        int i = home(pageOf[frame]);
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = frame + 1;
+    }
+
+    // 从散列表中删除页号，并把后面同一探测序列上的槽位前移，保证查找不会提前遇到空槽
+    private void remove(long pageNo) {
+        int mask = table.length - 1;
+        int i = home(pageNo);
+        while (pageOf[table[i] - 1] != pageNo) {
+            i = (i + 1) & mask;
+        }
+        int hole = i;
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int h = home(pageOf[table[j] - 1]);
+            // 槽位 j 的初始位置不在 (hole, j] 之间时，可以移动到 hole
+            if (((j - h) & mask) >= ((j - hole) & mask)) {
+                table[hole] = table[j];
+                hole = j;
+            }
+        }
+        table[hole] = 0;
+        if (pageNo == lastPage) {
+            lastPage = -1;
+        }
+    }
+
+    // 使用 CLOCK 算法选择一个被淘汰的帧：跳过并清除访问位为 true 的帧
+    private int victim() {
+        while (true) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            if (pageOf[frame] < 0 || !referenced[frame]) {
+                return frame;
+            }
+            referenced[frame] = false;
+        }
+    }
+
+    // 把帧写回文件
+    private void writeBack(int frame) {
+        ByteBuffer buf = frames[frame].duplicate();
+        buf.clear();
+        try {
+            long position = pageOf[frame] * pageSize;
+            while (buf.hasRemaining()) {
+                channel.write(buf, position + buf.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        dirty[frame] = false;
+        writes++;
+    }
+
+    /**
+     * 把所有脏页写回文件。
+     *
+     * @throws UncheckedIOException 如果写文件失败
+     */
+    void flush() {
+        for (int i = 0; i < frames.length; i++) {
+            if (pageOf[i] >= 0 && dirty[i]) {
+                writeBack(i);
+            }
+        }
+    }
+
+    int capacity() {
+        return frames.length;
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    long evictions() {
+        return evictions;
+    }
+
+    long writes() {
+        return writes;
+    }
+}
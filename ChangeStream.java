@@ -0,0 +1,461 @@
+package com.pseudoyu.tree.rb;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 树的变更流，由 {@link RedBlackTree#openChangeStream(int)} 创建。
+ * <p>
+ * 树的每次修改（put、delete、deleteMin、deleteMax、compute 系列方法以及按区间删除）都会把
+ * 键、旧值和新值写入一个预先分配的环形缓冲区，并分配一个从 0 开始连续递增的序列号；
+ * 写入只是几次数组赋值和一次 volatile 写，不分配对象。一个独立的投递线程把缓冲区中积累的变更
+ * 成批交给所有订阅者，订阅者在投递线程中依次执行，不会拖慢写路径。
+ * 投递线程空闲后先以逐渐加倍的间隔短暂休眠几次，期间积压超过一半容量时由写线程立即唤醒；
+ * 仍然没有新的变更时转入无限期休眠，由下一次写入唤醒，因此长时间空闲的变更流不占用 CPU。
+ * <p>
+ * 缓冲区写满时写操作会阻塞，直到投递线程腾出空间（背压），阻塞的次数和时长可以通过
+ * {@link #stalls()} 与 {@link #stallNanos()} 查询，尚未投递的变更数量通过 {@link #lag()} 查询。
+ * <p>
+ * 变更按不同的键描述值的变化：旧值为 null 表示插入，新值为 null 表示删除。
+ * 多重集模式下只改变重数、不改变键是否存在的修改不会产生变更。
+ * 写入端要求同一时刻只有一个线程修改树，这与树本身的要求一致。
+ *
+ * @param <Key>   键的类型
+ * @param <Value> 值的类型
+ */
+@SuppressWarnings("unchecked")
+public final class ChangeStream<Key, Value> implements AutoCloseable {
+
+    /**
+     * 变更的类型。
+     */
+    public enum Type {
+        INSERT, UPDATE, DELETE
+    }
+
+    /**
+     * 变更流的订阅者。
+     *
+     * @param <Key>   键的类型
+     * @param <Value> 值的类型
+     */
+    public interface Listener<Key, Value> {
+
+        /**
+         * 在投递线程中处理一批变更。批次对象和其中的数据只在本次调用期间有效，
+         * 需要保留的内容必须在返回之前复制出来。抛出的异常（包括 Error）会被计数并忽略，
+         * 不影响其他订阅者，也不会终止投递线程。
+         *
+         * @param batch 按序列号递增排列的一批变更
+         */
+        void onBatch(Batch<Key, Value> batch);
+    }
+
+    /**
+     * 一批变更，直接引用环形缓冲区中的槽位，投递线程在所有订阅者返回之前不会释放这些槽位。
+     *
+     * @param <Key>   键的类型
+     * @param <Value> 值的类型
+     */
+    public static final class Batch<Key, Value> {
+        private final ChangeStream<Key, Value> stream;
+        private long first;
+        private int size;
+
+        private Batch(ChangeStream<Key, Value> stream) {
+            this.stream = stream;
+        }
+
+        /**
+         * 返回批次中的变更数量。
+         *
+         * @return 变更数量
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * 返回第 i 个变更的序列号。
+         *
+         * @param i 批次内的下标
+         * @return 序列号
+         */
+        public long sequence(int i) {
+            return first + check(i);
+        }
+
+        /**
+         * 返回第 i 个变更的类型。
+         *
+         * @param i 批次内的下标
+         * @return 变更类型
+         */
+        public Type type(int i) {
+            int slot = stream.slot(first + check(i));
+            if (stream.oldVals[slot] == null) {
+                return Type.INSERT;
+            }
+            return stream.newVals[slot] == null ? Type.DELETE : Type.UPDATE;
+        }
+
+        /**
+         * 返回第 i 个变更的键。
+         *
+         * @param i 批次内的下标
+         * @return 键
+         */
+        public Key key(int i) {
+            return (Key) stream.keys[stream.slot(first + check(i))];
+        }
+
+        /**
+         * 返回第 i 个变更之前的值。
+         *
+         * @param i 批次内的下标
+         * @return 旧值；插入时为 null
+         */
+        public Value oldValue(int i) {
+            return (Value) stream.oldVals[stream.slot(first + check(i))];
+        }
+
+        /**
+         * 返回第 i 个变更之后的值。
+         *
+         * @param i 批次内的下标
+         * @return 新值；删除时为 null
+         */
+        public Value newValue(int i) {
+            return (Value) stream.newVals[stream.slot(first + check(i))];
+        }
+
+        private int check(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("batch index " + i + " out of range [0, " + size + ")");
+            }
+            return i;
+        }
+    }
+
+    // 投递线程空闲后第一次短暂休眠的时长，之后每次加倍
+    private static final long BACKOFF_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(16);
+
+    // 短暂休眠的次数，用完之后无限期休眠；16 微秒加倍 7 次，总计约 2 毫秒
+    private static final int BACKOFF_ROUNDS = 7;
+
+    // awaitDelivered 每次等待的最长时间
+    private static final long AWAIT_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // 投递线程的状态：正在投递、短暂休眠、无限期休眠
+    private static final int RUNNING = 0;
+    private static final int BACKOFF = 1;
+    private static final int IDLE = 2;
+
+    private final int mask;                // 容量减一，容量是 2 的幂
+    private final Object[] keys;           // 环形缓冲区：序列号 s 的变更位于槽位 s & mask
+    private final Object[] oldVals;
+    private final Object[] newVals;
+    private final List<Listener<Key, Value>> listeners = new CopyOnWriteArrayList<>();
+    private final Batch<Key, Value> batch = new Batch<>(this);
+    private final Thread deliverer;
+
+    private volatile long published;       // 已写入的变更数，即下一个序列号
+    private volatile long delivered;       // 已投递完的变更数
+    private volatile boolean closed;
+    private volatile int delivererState;      // RUNNING、BACKOFF 或 IDLE
+    private volatile Thread blockedWriter;    // 因缓冲区已满而阻塞的写线程
+
+    // 以下统计只由写线程修改
+    private volatile long maxLag;
+    private volatile long stalls;
+    private volatile long stallNanos;
+
+    // 以下统计只由投递线程修改
+    private volatile long batches;
+    private volatile long errors;
+
+    ChangeStream(int capacity) {
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        this.mask = n - 1;
+        this.keys = new Object[n];
+        this.oldVals = new Object[n];
+        this.newVals = new Object[n];
+        this.deliverer = new Thread(this::deliver, "red-black-tree-change-stream");
+        this.deliverer.setDaemon(true);
+        this.deliverer.start();
+    }
+
+    /**
+     * 添加一个订阅者。订阅者从下一批投递开始收到变更，在它加入之前已经投递的变更不会重放。
+     *
+     * @param listener 订阅者
+     * @throws IllegalArgumentException 如果 listener 为 null
+     */
+    public void subscribe(Listener<Key, Value> listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("argument to subscribe() is null");
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * 移除一个订阅者。
+     *
+     * @param listener 订阅者
+     * @return 如果该订阅者存在则返回 true
+     */
+    public boolean unsubscribe(Listener<Key, Value> listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * 返回缓冲区的容量。
+     *
+     * @return 容量
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * 返回已写入的变更数量，也就是下一个变更的序列号。
+     *
+     * @return 已写入的变更数量
+     */
+    public long published() {
+        return published;
+    }
+
+    /**
+     * 返回已投递给所有订阅者的变更数量。
+     *
+     * @return 已投递的变更数量
+     */
+    public long delivered() {
+        return delivered;
+    }
+
+    /**
+     * 返回已写入但尚未投递完的变更数量。
+     *
+     * @return 滞后的变更数量
+     */
+    public long lag() {
+        return published - delivered;
+    }
+
+    /**
+     * 返回写入变更时观察到的最大滞后。
+     *
+     * @return 最大滞后
+     */
+    public long maxLag() {
+        return maxLag;
+    }
+
+    /**
+     * 返回写操作因缓冲区已满而阻塞的次数。
+     *
+     * @return 阻塞次数
+     */
+    public long stalls() {
+        return stalls;
+    }
+
+    /**
+     * 返回写操作因缓冲区已满而阻塞的总时长（纳秒）。
+     *
+     * @return 阻塞的总纳秒数
+     */
+    public long stallNanos() {
+        return stallNanos;
+    }
+
+    /**
+     * 返回已投递的批次数。
+     *
+     * @return 批次数
+     */
+    public long batches() {
+        return batches;
+    }
+
+    /**
+     * 返回订阅者抛出异常的次数。
+     *
+     * @return 异常次数
+     */
+    public long errors() {
+        return errors;
+    }
+
+    /**
+     * 等待当前已写入的所有变更投递完毕。
+     *
+     * @param timeout 最长等待时间
+     * @param unit    时间单位
+     * @return 如果在超时之前投递完毕则返回 true
+     * @throws InterruptedException 如果等待时被中断
+     */
+    public boolean awaitDelivered(long timeout, TimeUnit unit) throws InterruptedException {
+        long target = published;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (delivered < target) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || closed && !deliverer.isAlive()) {
+                return delivered >= target;
+            }
+            LockSupport.unpark(deliverer);
+            LockSupport.parkNanos(Math.min(remaining, AWAIT_PARK_NANOS));
+        }
+        return true;
+    }
+
+    /**
+     * 关闭变更流：不再接收新的变更，投递线程把缓冲区中剩余的变更投递完之后退出。
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(deliverer);
+        Thread w = blockedWriter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    /**
+     * 判断变更流是否仍在接收变更。
+     *
+     * @return 如果尚未关闭则返回 true
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * 记录一个变更。由修改树的线程调用；缓冲区已满时阻塞到投递线程腾出空间为止。
+     *
+     * @param key    键
+     * @param oldVal 旧值，插入时为 null
+     * @param newVal 新值，删除时为 null
+     */
+    void record(Object key, Object oldVal, Object newVal) {
+        if (closed) {
+            return;
+        }
+        long seq = published;
+        if (seq - delivered > mask) {
+            awaitSpace(seq);
+            if (closed) {
+                return;
+            }
+        }
+        int slot = slot(seq);
+        keys[slot] = key;
+        oldVals[slot] = oldVal;
+        newVals[slot] = newVal;
+        published = seq + 1;
+        long lag = seq + 1 - delivered;
+        if (lag > maxLag) {
+            maxLag = lag;
+        }
+        // 短暂休眠的投递线程会自行醒来，只有积压超过一半容量时才立即唤醒它，这样连续的写入
+        // 不需要唤醒线程的系统调用；无限期休眠的投递线程由这次写入唤醒，并先把状态改回 RUNNING，
+        // 让它被调度之前的后续写入不再重复唤醒
+        int state = delivererState;
+        if (state == IDLE || state == BACKOFF && lag > mask >>> 1) {
+            delivererState = RUNNING;
+            LockSupport.unpark(deliverer);
+        }
+    }
+
+    // 缓冲区已满：记录阻塞并等待投递线程推进
+    private void awaitSpace(long seq) {
+        long start = System.nanoTime();
+        stalls++;
+        blockedWriter = Thread.currentThread();
+        while (seq - delivered > mask && !closed) {
+            LockSupport.unpark(deliverer);
+            LockSupport.park(this);
+        }
+        blockedWriter = null;
+        stallNanos += System.nanoTime() - start;
+    }
+
+    private int slot(long seq) {
+        return (int) seq & mask;
+    }
+
+    // 投递线程的主循环；线程意外退出时关闭变更流，避免写线程永远阻塞
+    private void deliver() {
+        try {
+            deliverLoop();
+        } finally {
+            closed = true;
+            Thread w = blockedWriter;
+            if (w != null) {
+                LockSupport.unpark(w);
+            }
+        }
+    }
+
+    private void deliverLoop() {
+        int idleRounds = 0;
+        while (true) {
+            long from = delivered;
+            long to = published;
+            if (from == to) {
+                if (closed) {
+                    return;
+                }
+                // 先发布状态再检查 published：写线程先发布 published 再读状态，二者至少有一方看到对方的写入
+                if (idleRounds < BACKOFF_ROUNDS) {
+                    delivererState = BACKOFF;
+                    if (published == from && !closed) {
+                        LockSupport.parkNanos(this, BACKOFF_PARK_NANOS << idleRounds);
+                    }
+                    idleRounds++;
+                } else {
+                    delivererState = IDLE;
+                    if (published == from && !closed) {
+                        LockSupport.park(this);
+                    }
+                }
+                delivererState = RUNNING;
+                continue;
+            }
+            idleRounds = 0;
+            batch.first = from;
+            batch.size = (int) (to - from);
+            for (Listener<Key, Value> listener : listeners) {
+                try {
+                    listener.onBatch(batch);
+                } catch (Throwable e) {
+                    errors++;
+                }
+            }
+            batches++;
+            // 释放槽位中的引用，避免缓冲区让已经删除的键和值无法回收
+            for (long s = from; s < to; s++) {
+                int slot = slot(s);
+                keys[slot] = null;
+                oldVals[slot] = null;
+                newVals[slot] = null;
+            }
+            delivered = to;
+            Thread w = blockedWriter;
+            if (w != null) {
+                LockSupport.unpark(w);
+            }
+        }
+    }
+}
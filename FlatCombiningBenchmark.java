@@ -0,0 +1,76 @@
+package com.pseudoyu.tree.rb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 比较扁平合并与普通加锁两种写路径在不同线程数下的吞吐量。
+ * <p>
+ * 用法：{@code java com.pseudoyu.tree.rb.FlatCombiningBenchmark [keyRange] [seconds]}，
+ * 依次以 1、2、4 …… 64 个线程运行 50% put / 50% delete 的混合负载，每轮输出每秒操作数。
+ */
+public class FlatCombiningBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        final int keyRange = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        System.out.printf("%8s %16s %16s%n", "threads", "locked ops/s", "combining ops/s");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            final RedBlackTree<Integer, Integer> plain = new RedBlackTree<>();
+            final ReentrantLock lock = new ReentrantLock();
+            long locked = run(threads, seconds, () -> {
+                int key = ThreadLocalRandom.current().nextInt(keyRange);
+                lock.lock();
+                try {
+                    if ((key & 1) == 0) {
+                        plain.put(key, key);
+                    } else {
+                        plain.delete(key - 1);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            });
+
+            final FlatCombiningRedBlackTree<Integer, Integer> combined = new FlatCombiningRedBlackTree<>();
+            long combining = run(threads, seconds, () -> {
+                int key = ThreadLocalRandom.current().nextInt(keyRange);
+                if ((key & 1) == 0) {
+                    combined.put(key, key);
+                } else {
+                    combined.delete(key - 1);
+                }
+            });
+
+            System.out.printf("%8d %16d %16d%n", threads, locked / seconds, combining / seconds);
+        }
+    }
+
+    // 用给定数量的线程重复执行操作，返回总操作数
+    private static long run(int threads, int seconds, final Runnable op) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final LongAdder ops = new LongAdder();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                long n = 0;
+                while (!stop.get()) {
+                    op.run();
+                    n++;
+                }
+                ops.add(n);
+                done.countDown();
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        done.await();
+        return ops.sum();
+    }
+}
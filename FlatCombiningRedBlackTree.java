@@ -0,0 +1,307 @@
+package com.pseudoyu.tree.rb;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * 使用扁平合并（flat combining）保护的红黑树。
+ * <p>
+ * 每个线程把自己的操作发布到专属的槽位中，然后尝试成为合并者。成为合并者的线程扫描所有槽位，
+ * 把待处理的操作按键排序后一次性作用到树上（此时树的上层节点都在该线程的缓存中），
+ * 再把结果逐个交还给发布者。其他线程只需要自旋等待自己的槽位完成，不会争抢锁，
+ * 也不会让树顶层节点所在的缓存行在核心之间来回迁移。
+ * <p>
+ * 从调用者的角度看，所有操作都是同步完成的；操作抛出的异常由合并者记录在槽位中，在发布者的线程中重新抛出。
+ * <p>
+ * 合并者每隔 {@value #CLEANUP_INTERVAL} 轮扫描就把长期没有发布操作的槽位移出槽位数组，
+ * 因此线程池或短生命周期的线程不会让槽位数组无限增长；被移出的线程下一次发布操作时会重新加入。
+ */
+public class FlatCombiningRedBlackTree<Key extends Comparable<Key>, Value> {
+
+    // 槽位中的操作类型；NONE 表示槽位空闲或操作已完成
+    private static final int NONE = 0;
+    private static final int GET = 1;
+    private static final int PUT = 2;
+    private static final int DELETE = 3;
+
+    // 合并者每次最多扫描的轮数，避免一个线程长期承担合并工作
+    private static final int COMBINE_PASSES = 4;
+
+    // 等待期间自旋多少次后让出 CPU
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    // 合并者每扫描多少轮清理一次空闲的槽位，槽位连续这么多轮没有发布操作就会被移出
+    private static final int CLEANUP_INTERVAL = 1024;
+
+    private final RedBlackTree<Key, Value> tree = new RedBlackTree<>();  // 实际保存数据的红黑树
+    private final AtomicBoolean combining = new AtomicBoolean();         // 合并者角色
+    private final ThreadLocal<Slot> slot = ThreadLocal.withInitial(this::register);
+    private volatile Slot[] slots = newSlots(0);  // 所有已注册的槽位
+    private Slot[] batch = newSlots(0);           // 合并者使用的排序缓冲区
+    private int passes;                           // 合并者已经完成的扫描轮数，只由合并者修改
+
+    // 按键排序待处理的操作
+    private final Comparator<Slot> byKey = (a, b) -> a.key.compareTo(b.key);
+
+    /**
+     * 返回与给定键关联的值。
+     *
+     * @param key 要查询的键
+     * @return 与该键关联的值；如果不存在则返回 null
+     * @throws IllegalArgumentException 如果给定的键为 null
+     */
+    public Value get(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to get() is null");
+        }
+        return execute(GET, key, null);
+    }
+
+    /**
+     * 判断是否包含给定的键。
+     *
+     * @param key 要检查的键
+     * @return 如果包含则返回 true
+     * @throws IllegalArgumentException 如果给定的键为 null
+     */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    /**
+     * 将指定的键值对插入到符号表中；如果值为 null，则删除该键。
+     *
+     * @param key 键
+     * @param val 值
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public void put(Key key, Value val) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to put() is null");
+        }
+        execute(PUT, key, val);
+    }
+
+    /**
+     * 删除指定的键（如果存在）。
+     *
+     * @param key 键
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public void delete(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to delete() is null");
+        }
+        execute(DELETE, key, null);
+    }
+
+    /**
+     * 返回键值对数量。
+     *
+     * @return 键值对数量
+     */
+    public int size() {
+        lock();
+        try {
+            return tree.size();
+        } finally {
+            combining.set(false);
+        }
+    }
+
+    /**
+     * 返回当前槽位数组中的槽位数量，即最近发布过操作的线程数。
+     *
+     * @return 槽位数量
+     */
+    int slotCount() {
+        return slots.length;
+    }
+
+    /**
+     * 在持有合并者角色的情况下访问底层的树，用于执行范围查询等不经过槽位的操作。
+     * 回调期间其他线程的操作会等待。
+     *
+     * @param action 对树执行的操作
+     * @param <R>    返回值类型
+     * @return 操作的返回值
+     */
+    public <R> R withTree(Function<RedBlackTree<Key, Value>, R> action) {
+        lock();
+        try {
+            return action.apply(tree);
+        } finally {
+            combining.set(false);
+        }
+    }
+
+    /***************************************************************************
+     *  扁平合并。
+     ***************************************************************************/
+
+    // 发布操作并等待它完成
+    private Value execute(int op, Key key, Value val) {
+        Slot s = slot.get();
+        s.key = key;
+        s.val = val;
+        s.op = op;  // volatile 写，之后合并者可以看到 key 和 val
+        if (!s.active) {
+            // 槽位因空闲被移出了槽位数组，重新加入之后合并者才能看到这次操作
+            register(s);
+        }
+
+        int spins = 0;
+        while (s.op != NONE) {
+            if (!combining.get() && combining.compareAndSet(false, true)) {
+                try {
+                    combine();
+                } finally {
+                    combining.set(false);
+                }
+            } else if (++spins % SPINS_BEFORE_YIELD == 0) {
+                Thread.yield();
+            }
+        }
+
+        Value result = s.result;
+        Throwable error = s.error;
+        s.key = null;
+        s.val = null;
+        s.result = null;
+        s.error = null;
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        return result;
+    }
+
+    // 以合并者身份收集所有待处理的操作，按键排序后批量执行
+    private void combine() {
+        for (int pass = 0; pass < COMBINE_PASSES; pass++) {
+            if (++passes % CLEANUP_INTERVAL == 0) {
+                retireIdle();
+            }
+            Slot[] all = slots;
+            if (batch.length < all.length) {
+                batch = newSlots(all.length);
+            }
+            int n = collect(all);
+            if (n == 0) {
+                return;
+            }
+
+            // 排序后相邻的操作落在相邻的路径上，树的节点在处理整批操作期间保持在缓存中。
+            // 键的比较抛出异常时排序缓冲区的内容不再可靠，重新收集之后按发布顺序执行，
+            // 由出错的那个操作把异常交还给它的发布者
+            try {
+                Arrays.sort(batch, 0, n, byKey);
+            } catch (RuntimeException e) {
+                Arrays.fill(batch, 0, n, null);
+                n = collect(all);
+            }
+            for (int i = 0; i < n; i++) {
+                Slot s = batch[i];
+                batch[i] = null;
+                try {
+                    switch (s.op) {
+                        case GET:
+                            s.result = tree.get(s.key);
+                            break;
+                        case PUT:
+                            tree.put(s.key, s.val);
+                            break;
+                        default:
+                            tree.delete(s.key);
+                            break;
+                    }
+                } catch (Throwable e) {
+                    s.error = e;
+                }
+                s.op = NONE;  // volatile 写，把结果交还给发布者
+            }
+        }
+    }
+
+    // 把有待处理操作的槽位收集到排序缓冲区中，返回数量
+    private int collect(Slot[] all) {
+        int n = 0;
+        for (Slot s : all) {
+            if (s.op != NONE) {
+                s.lastUsed = passes;
+                batch[n++] = s;
+            }
+        }
+        return n;
+    }
+
+    // 把连续 CLEANUP_INTERVAL 轮没有发布操作的槽位移出槽位数组。先清除 active 再检查 op，
+    // 发布者则先写 op 再检查 active，所以每个操作要么被这里看到而保留槽位，要么由发布者重新注册
+    private synchronized void retireIdle() {
+        Slot[] all = slots;
+        Slot[] kept = newSlots(all.length);
+        int n = 0;
+        for (Slot s : all) {
+            if (passes - s.lastUsed >= CLEANUP_INTERVAL) {
+                s.active = false;
+                if (s.op == NONE) {
+                    continue;
+                }
+                s.active = true;
+            }
+            kept[n++] = s;
+        }
+        if (n < all.length) {
+            slots = Arrays.copyOf(kept, n);
+        }
+    }
+
+    // 获取合并者角色，用于不经过槽位的操作
+    private void lock() {
+        int spins = 0;
+        while (!combining.compareAndSet(false, true)) {
+            if (++spins % SPINS_BEFORE_YIELD == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    // 为当前线程创建一个新的槽位并注册
+    private Slot register() {
+        Slot s = new Slot();
+        register(s);
+        return s;
+    }
+
+    // 把槽位加入槽位数组（如果它还不在其中）
+    private synchronized void register(Slot s) {
+        if (s.active) {
+            return;
+        }
+        s.lastUsed = passes;
+        Slot[] copy = Arrays.copyOf(slots, slots.length + 1);
+        copy[copy.length - 1] = s;
+        slots = copy;
+        s.active = true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Slot[] newSlots(int n) {
+        return (Slot[]) new FlatCombiningRedBlackTree<?, ?>.Slot[n];
+    }
+
+    // 每个线程专属的发布槽位
+    private final class Slot {
+        private volatile int op;          // 待执行的操作，NONE 表示已完成
+        private volatile boolean active;  // 槽位是否在槽位数组中
+        private Key key;                  // 操作的键
+        private Value val;                // put 的值
+        private Value result;             // get 的结果
+        private Throwable error;          // 操作抛出的异常
+        private int lastUsed;             // 最近一次发布操作时合并者的扫描轮数
+    }
+}
@@ -0,0 +1,87 @@
+package com.pseudoyu.tree.rb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FlatCombiningRedBlackTreeTest {
+
+    @Test
+    public void concurrentWritersSeeTheirOwnResults() throws InterruptedException {
+        final FlatCombiningRedBlackTree<Integer, Integer> tree = new FlatCombiningRedBlackTree<>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = offset; i < 20000; i += 8) {
+                    tree.put(i, i * 2);
+                    assertEquals(Integer.valueOf(i * 2), tree.get(i));
+                    if (i % 5 == 0) {
+                        tree.delete(i);
+                        assertNull(tree.get(i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(16000, tree.size());
+        assertTrue(tree.withTree(RedBlackTree::check));
+        assertEquals(Integer.valueOf(7), tree.withTree(t -> t.select(5)));
+    }
+
+    @Test
+    public void shortLivedThreadsDoNotLeakSlots() throws InterruptedException {
+        final FlatCombiningRedBlackTree<Integer, Integer> tree = new FlatCombiningRedBlackTree<>();
+        for (int t = 0; t < 200; t++) {
+            final int key = t;
+            Thread thread = new Thread(() -> tree.put(key, key));
+            thread.start();
+            thread.join();
+        }
+        assertEquals(200, tree.slotCount());
+        for (int i = 0; i < 5000; i++) {
+            tree.put(i, i);
+        }
+        assertEquals(1, tree.slotCount());
+        assertEquals(5000, tree.size());
+    }
+
+    @Test
+    public void failingComparisonIsReportedToItsCaller() {
+        FlatCombiningRedBlackTree<Key, Integer> tree = new FlatCombiningRedBlackTree<>();
+        tree.put(new Key(1, false), 1);
+        try {
+            tree.put(new Key(2, true), 2);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("broken key", e.getMessage());
+        }
+        assertEquals(Integer.valueOf(1), tree.get(new Key(1, false)));
+        assertEquals(1, tree.size());
+    }
+
+    private static final class Key implements Comparable<Key> {
+        private final int id;
+        private final boolean broken;
+
+        Key(int id, boolean broken) {
+            this.id = id;
+            this.broken = broken;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (broken || other.broken) {
+                throw new IllegalStateException("broken key");
+            }
+            return Integer.compare(id, other.id);
+        }
+    }
+}
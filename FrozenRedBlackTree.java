@@ -0,0 +1,385 @@
+package com.pseudoyu.tree.rb;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 由 {@link RedBlackTree#freeze()} 生成的只读快照，查询语义与原来的树相同。
+ * <p>
+ * 键和值按顺序保存在连续的数组中，另有一份按 Eytzinger（广度优先）顺序排列的键数组用于查找：
+ * 位置 k 的两个孩子在 2k 和 2k+1，查找路径上前几层的键集中在数组开头的几个缓存行里，
+ * 每一步只根据比较结果计算下一个下标，循环中没有依赖数据的分支。
+ * 查找结束后，用位运算退回到第一个不小于目标的位置，再通过 rankOf 映射到有序数组中的下标。
+ * <p>
+ * 每个键值对只占用有序数组和 Eytzinger 数组中的三个引用和一个 int，
+ * 多重集快照另有一个记录出现次数前缀和的 int。构造的时间和空间都是线性的。
+ *
+ * @param <Key>   键的类型
+ * @param <Value> 值的类型
+ */
+@SuppressWarnings("unchecked")
+public class FrozenRedBlackTree<Key extends Comparable<Key>, Value> {
+
+    private final Object[] keys;   // 有序的键
+    private final Object[] vals;   // 与 keys 对应的值
+    private final int[] prefix;    // prefix[i] 为前 i 个键的出现次数之和；所有键都只出现一次时为 null
+    private final Object[] eyt;    // Eytzinger 顺序的键，下标从 1 开始；不构造时为 null
+    private final int[] rankOf;    // Eytzinger 下标到有序下标的映射；不构造时为 null
+
+    /**
+     * 用有序数组构造快照，数组的所有权转移给快照。
+     *
+     * @param keys   严格递增的键
+     * @param vals   与键对应的值
+     * @param counts 每个键的出现次数；所有键都只出现一次时可以为 null
+     */
+    FrozenRedBlackTree(Object[] keys, Object[] vals, int[] counts) {
+        this(keys, vals, counts, true);
+    }
+
+    /**
+     * 用有序数组构造快照，数组的所有权转移给快照。
+     *
+     * @param keys      严格递增的键
+     * @param vals      与键对应的值
+     * @param counts    每个键的出现次数；所有键都只出现一次时可以为 null
+     * @param eytzinger 是否构造 Eytzinger 数组；不构造时查找直接在有序数组上二分，适合很快就会被丢弃的快照
+     */
+    FrozenRedBlackTree(Object[] keys, Object[] vals, int[] counts, boolean eytzinger) {
+        int n = keys.length;
+        this.keys = keys;
+        this.vals = vals;
+        if (counts == null) {
+            this.prefix = null;
+        } else {
+            this.prefix = new int[n + 1];
+            for (int i = 0; i < n; i++) {
+                prefix[i + 1] = prefix[i] + counts[i];
+            }
+        }
+        if (!eytzinger) {
+            this.eyt = null;
+            this.rankOf = null;
+            return;
+        }
+        this.eyt = new Object[n + 1];
+        this.rankOf = new int[n + 1];
+        // 按 Eytzinger 下标做中序遍历，依次填入有序的键；用显式栈避免递归
+        int[] stack = new int[33];
+        int top = 0;
+        int k = 1;
+        int i = 0;
+        while (k <= n || top > 0) {
+            while (k <= n) {
+                stack[top++] = k;
+                k <<= 1;
+            }
+            k = stack[--top];
+            eyt[k] = keys[i];
+            rankOf[k] = i++;
+            k = (k << 1) + 1;
+        }
+    }
+
+    /**
+     * 返回键值对的数量，多重集快照按出现次数计算。
+     *
+     * @return 键值对的数量
+     */
+    public int size() {
+        return prefix == null ? keys.length : prefix[keys.length];
+    }
+
+    /**
+     * 返回不同键的数量。
+     *
+     * @return 不同键的数量
+     */
+    public int distinctSize() {
+        return keys.length;
+    }
+
+    /**
+     * 判断快照是否为空。
+     *
+     * @return 如果为空则返回 true
+     */
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    /**
+     * 返回与给定键关联的值。
+     *
+     * @param key 键
+     * @return 与该键关联的值；如果键不存在则返回 null
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public Value get(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to get() is null");
+        }
+        int i = lowerBound(key);
+        return i < keys.length && key.compareTo((Key) keys[i]) == 0 ? (Value) vals[i] : null;
+    }
+
+    /**
+     * 判断快照是否包含给定的键。
+     *
+     * @param key 键
+     * @return 如果包含则返回 true
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    /**
+     * 返回给定键的出现次数。
+     *
+     * @param key 键
+     * @return 出现次数；如果键不存在则返回 0
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public int count(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to count() is null");
+        }
+        int i = lowerBound(key);
+        if (i == keys.length || key.compareTo((Key) keys[i]) != 0) {
+            return 0;
+        }
+        return prefix == null ? 1 : prefix[i + 1] - prefix[i];
+    }
+
+    /**
+     * 返回最小的键。
+     *
+     * @return 最小的键
+     * @throws NoSuchElementException 如果快照为空
+     */
+    public Key min() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("called min() with empty symbol table");
+        }
+        return (Key) keys[0];
+    }
+
+    /**
+     * 返回最大的键。
+     *
+     * @return 最大的键
+     * @throws NoSuchElementException 如果快照为空
+     */
+    public Key max() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("called max() with empty symbol table");
+        }
+        return (Key) keys[keys.length - 1];
+    }
+
+    /**
+     * 返回小于等于给定键的最大键。
+     *
+     * @param key 键
+     * @return 小于等于 key 的最大键；如果不存在则返回 null
+     * @throws IllegalArgumentException 如果键为 null
+     * @throws NoSuchElementException   如果快照为空
+     */
+    public Key floor(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to floor() is null");
+        }
+        if (isEmpty()) {
+            throw new NoSuchElementException("called floor() with empty symbol table");
+        }
+        int i = lowerBound(key);
+        if (i < keys.length && key.compareTo((Key) keys[i]) == 0) {
+            return (Key) keys[i];
+        }
+        return i == 0 ? null : (Key) keys[i - 1];
+    }
+
+    /**
+     * 返回大于等于给定键的最小键。
+     *
+     * @param key 键
+     * @return 大于等于 key 的最小键；如果不存在则返回 null
+     * @throws IllegalArgumentException 如果键为 null
+     * @throws NoSuchElementException   如果快照为空
+     */
+    public Key ceiling(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to ceiling() is null");
+        }
+        if (isEmpty()) {
+            throw new NoSuchElementException("called ceiling() with empty symbol table");
+        }
+        int i = lowerBound(key);
+        return i == keys.length ? null : (Key) keys[i];
+    }
+
+    /**
+     * 返回严格小于给定键的键值对数量。
+     *
+     * @param key 键
+     * @return 严格小于 key 的键值对数量
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public int rank(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to rank() is null");
+        }
+        int i = lowerBound(key);
+        return prefix == null ? i : prefix[i];
+    }
+
+    /**
+     * 返回排名为 k 的键。
+     *
+     * @param k 排名
+     * @return 排名为 k 的键
+     * @throws IllegalArgumentException 除非 k 在 0 到 n-1 之间
+     */
+    public Key select(int k) {
+        if (k < 0 || k >= size()) {
+            throw new IllegalArgumentException("called select() with invalid argument: " + k);
+        }
+        if (prefix == null) {
+            return (Key) keys[k];
+        }
+        // 找到最后一个 prefix[i] <= k 的 i
+        int lo = 0;
+        int hi = keys.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (prefix[mid] <= k) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return (Key) keys[lo];
+    }
+
+    /**
+     * 返回 [lo, hi] 之间的键值对数量。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 区间内的键值对数量
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public int size(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to size() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to size() is null");
+        }
+        if (lo.compareTo(hi) > 0) {
+            return 0;
+        }
+        int from = lowerBound(lo);
+        int to = upperBound(hi);
+        return prefix == null ? to - from : prefix[to] - prefix[from];
+    }
+
+    /**
+     * 按顺序返回所有的键。
+     *
+     * @return 所有的键
+     */
+    public Iterable<Key> keys() {
+        return range(0, keys.length);
+    }
+
+    /**
+     * 按顺序返回 [lo, hi] 之间的键。结果直接遍历有序数组，不复制键。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 区间内的键
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public Iterable<Key> keys(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to keys() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to keys() is null");
+        }
+        int from = lowerBound(lo);
+        return range(from, Math.max(from, upperBound(hi)));
+    }
+
+    // 有序的键数组，供同一个包中的合并与归并读取直接访问，调用方不得修改
+    Object[] keyArray() {
+        return keys;
+    }
+
+    // 与 keyArray() 对应的值数组，调用方不得修改
+    Object[] valueArray() {
+        return vals;
+    }
+
+    // 有序数组 keys[from, to) 的视图
+    private Iterable<Key> range(int from, int to) {
+        return () -> new Iterator<Key>() {
+            private int i = from;
+
+            @Override
+            public boolean hasNext() {
+                return i < to;
+            }
+
+            @Override
+            public Key next() {
+                if (i >= to) {
+                    throw new NoSuchElementException();
+                }
+                return (Key) keys[i++];
+            }
+        };
+    }
+
+    /**
+     * 返回第一个不小于 key 的键在有序数组中的下标；如果所有键都小于 key，则返回键的数量。
+     * <p>
+     * 在 Eytzinger 数组中下降时，比较结果的符号位直接决定走向左孩子还是右孩子。
+     * 循环结束后 k 的二进制表示记录了整条路径，最后一次向左走之后的向右步数就是 k 末尾 1 的个数，
+     * 右移去掉这些位和那一次向左后，得到的正是第一个不小于 key 的位置（0 表示不存在）。
+     * 没有构造 Eytzinger 数组时直接在有序数组上二分查找。
+     *
+     * @param key 键
+     * @return 有序数组中的下标
+     */
+    private int lowerBound(Key key) {
+        int n = keys.length;
+        if (eyt == null) {
+            int lo = 0;
+            int hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (((Key) keys[mid]).compareTo(key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+        int k = 1;
+        while (k <= n) {
+            k = (k << 1) | (((Key) eyt[k]).compareTo(key) >>> 31);
+        }
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        return k == 0 ? n : rankOf[k];
+    }
+
+    // 返回第一个大于 key 的键在有序数组中的下标
+    private int upperBound(Key key) {
+        int i = lowerBound(key);
+        return i < keys.length && key.compareTo((Key) keys[i]) == 0 ? i + 1 : i;
+    }
+}
@@ -0,0 +1,52 @@
+package com.pseudoyu.tree.rb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FrozenRedBlackTreeTest {
+
+    @Test
+    public void frozenSnapshotAnswersLikeLiveTree() {
+        RedBlackTree<Integer, String> tree = new RedBlackTree<>();
+        for (int i = 0; i < 1000; i += 2) {
+            tree.put(i, "v" + i);
+        }
+        FrozenRedBlackTree<Integer, String> frozen = tree.freeze();
+        tree.put(1, "v1");
+
+        assertEquals(500, frozen.size());
+        assertEquals("v10", frozen.get(10));
+        assertNull(frozen.get(1));
+        assertEquals(Integer.valueOf(10), frozen.floor(11));
+        assertEquals(Integer.valueOf(12), frozen.ceiling(11));
+        assertNull(frozen.floor(-1));
+        assertNull(frozen.ceiling(999));
+        assertEquals(6, frozen.rank(11));
+        assertEquals(Integer.valueOf(12), frozen.select(6));
+        assertEquals(5, frozen.size(10, 19));
+
+        StringBuilder keys = new StringBuilder();
+        for (Integer key : frozen.keys(10, 19)) {
+            keys.append(key).append(' ');
+        }
+        assertEquals("10 12 14 16 18 ", keys.toString());
+    }
+
+    @Test
+    public void frozenMultisetCountsOccurrences() {
+        RedBlackTree<String, Integer> tree = new RedBlackTree<>(true);
+        for (String word : "b a c b b a".split(" ")) {
+            tree.put(word, 0);
+        }
+        FrozenRedBlackTree<String, Integer> frozen = tree.freeze();
+        assertEquals(6, frozen.size());
+        assertEquals(3, frozen.distinctSize());
+        assertEquals(3, frozen.count("b"));
+        assertEquals(2, frozen.rank("b"));
+        assertEquals("b", frozen.select(4));
+        assertEquals("c", frozen.select(5));
+        assertEquals(4, frozen.size("b", "c"));
+    }
+}
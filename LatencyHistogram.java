@@ -0,0 +1,112 @@
+package com.pseudoyu.tree.rb;
+
+/**
+ * 记录非负长整数（通常是纳秒延迟）分布的直方图，相对误差不超过 1/64。
+ * <p>
+ * 小于 128 的值各占一个桶；更大的值按最高位分组，每组再线性划分为 64 个桶，
+ * 因此整个 long 范围只需要固定的几千个计数器，记录一次只需一次数组自增，不分配对象。
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 64;                 // 每组的桶数
+    private static final int SUB_BITS = 6;                     // log2(SUB_BUCKETS)
+    private static final int BUCKETS = (63 - SUB_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * 记录一个值，负数按 0 记录。
+     *
+     * @param value 值
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * 把另一个直方图的计数合并到这个直方图中。
+     *
+     * @param other 另一个直方图
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    long min() {
+        return total == 0 ? 0 : min;
+    }
+
+    double mean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    /**
+     * 返回给定百分位上的值，即所在桶的上界（不超过记录到的最大值）。
+     *
+     * @param percentile 百分位，取值 0 到 100
+     * @return 百分位上的值；没有记录时返回 0
+     */
+    long percentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * total);
+        rank = Math.max(1, Math.min(total, rank));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highest(i));
+            }
+        }
+        return max;
+    }
+
+    // 返回值所在的桶
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // 返回桶中能容纳的最大值
+    private static long highest(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index - shift * SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
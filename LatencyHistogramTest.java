@@ -0,0 +1,39 @@
+package com.pseudoyu.tree.rb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesWithinRelativeError() {
+        Random random = new Random(1);
+        long[] values = new long[100000];
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 25);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(p / 100 * values.length) - 1];
+            long estimate = h.percentile(p);
+            assertTrue(estimate >= exact);
+            assertTrue(estimate - exact <= exact / 64 + 1);
+        }
+        assertEquals(values[values.length - 1], h.percentile(100));
+        assertEquals(values[values.length - 1], h.max());
+        assertEquals(values.length, h.count());
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(Long.MAX_VALUE);
+        h.add(other);
+        assertEquals(Long.MAX_VALUE, h.percentile(100));
+        assertEquals(values.length + 1, h.count());
+    }
+}
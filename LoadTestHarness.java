@@ -0,0 +1,334 @@
+package com.pseudoyu.tree.rb;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * 在大规模数据上长时间运行混合负载，记录各类操作的延迟分布和 GC、分配、堆的统计，并输出 JSON。
+ * <p>
+ * 用法：{@code java -Xmx32g com.pseudoyu.tree.rb.LoadTestHarness [--name=value ...]}，可用的参数：
+ * <ul>
+ *     <li>{@code entries}：预先插入的键数，默认 10000000；2 亿个键大约需要 20 GB 堆</li>
+ *     <li>{@code seconds}：混合负载的运行时间，默认 60</li>
+ *     <li>{@code mix}：各操作的权重，默认 {@code get=60,put=15,delete=15,range=5,rank=5}</li>
+ *     <li>{@code range}：范围查询覆盖的键空间宽度，默认 100</li>
+ *     <li>{@code report}：向标准错误输出进度的间隔秒数，默认 10</li>
+ *     <li>{@code seed}：随机数种子，默认 42</li>
+ *     <li>{@code out}：结果文件，默认输出到标准输出</li>
+ * </ul>
+ * 键空间是不小于 2 × entries 的 2 的幂，put 与 delete 在整个键空间上均匀选键，因此树的大小保持在 entries 附近。
+ * 延迟由单个线程用 {@link System#nanoTime()} 逐个测量，包含计时本身约几十纳秒的开销。
+ */
+public class LoadTestHarness {
+
+    private static final String[] OPERATIONS = {"get", "put", "delete", "range", "rank"};
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("entries", "10000000");
+        options.put("seconds", "60");
+        options.put("mix", "get=60,put=15,delete=15,range=5,rank=5");
+        options.put("range", "100");
+        options.put("report", "10");
+        options.put("seed", "42");
+        options.put("out", "");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0 || !options.containsKey(arg.substring(2, eq))) {
+                throw new IllegalArgumentException("unknown argument: " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+
+        int entries = Integer.parseInt(options.get("entries"));
+        long seconds = Long.parseLong(options.get("seconds"));
+        int rangeWidth = Integer.parseInt(options.get("range"));
+        long reportNanos = Long.parseLong(options.get("report")) * 1_000_000_000L;
+        int[] weights = parseMix(options.get("mix"));
+        int keySpace = Integer.highestOneBit(Math.max(1, 2 * entries - 1)) << 1;
+        int mask = keySpace - 1;
+        SplittableRandom random = new SplittableRandom(Long.parseLong(options.get("seed")));
+
+        GcMonitor gc = new GcMonitor();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // 预填充：奇数乘法在 2 的幂取模下是双射，键互不相同且顺序打乱
+        RedBlackTree<Integer, Integer> tree = new RedBlackTree<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            Integer key = (int) ((i * 0x9E3779B1L) & mask);
+            tree.put(key, key);
+        }
+        long prefillNanos = System.nanoTime() - start;
+        MemoryUsage heapAfterPrefill = heapAfterGc();
+        System.err.printf("prefilled %d entries in %.1f s, heap used %d MB%n",
+                tree.size(), prefillNanos / 1e9, heapAfterPrefill.getUsed() >> 20);
+
+        LatencyHistogram[] latency = new LatencyHistogram[OPERATIONS.length];
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+        }
+        int totalWeight = 0;
+        for (int w : weights) {
+            totalWeight += w;
+        }
+        gc.reset();
+        long allocatedBefore = allocatedBytes(threads, threadId);
+        long peakHeap = 0;
+        long sink = 0;
+        start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        long nextReport = start + reportNanos;
+        long ops = 0;
+        long now = start;
+        while (now < deadline) {
+            // 每 1024 次操作才读一次时钟判断是否结束，避免额外的开销
+            for (int n = 0; n < 1024; n++) {
+                int op = pick(weights, random.nextInt(totalWeight));
+                Integer key = random.nextInt(keySpace);
+                long t0 = System.nanoTime();
+                switch (op) {
+                    case 0:
+                        Integer v = tree.get(key);
+                        sink += v == null ? 0 : 1;
+                        break;
+                    case 1:
+                        tree.put(key, key);
+                        break;
+                    case 2:
+                        tree.delete(key);
+                        break;
+                    case 3:
+                        for (Integer k : tree.keys(key, key + rangeWidth)) {
+                            sink += k;
+                        }
+                        break;
+                    default:
+                        sink += tree.rank(key);
+                        break;
+                }
+                latency[op].record(System.nanoTime() - t0);
+            }
+            ops += 1024;
+            now = System.nanoTime();
+            if (now >= nextReport) {
+                long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+                peakHeap = Math.max(peakHeap, used);
+                System.err.printf("%6.0f s  %12d ops  size %d  heap %d MB  gc %d ms%n",
+                        (now - start) / 1e9, ops, tree.size(), used >> 20, gc.totalPauseMillis());
+                nextReport += reportNanos;
+            }
+        }
+        long elapsed = now - start;
+        long allocated = allocatedBytes(threads, threadId) - allocatedBefore;
+        MemoryUsage heapAtEnd = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        peakHeap = Math.max(peakHeap, heapAtEnd.getUsed());
+
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram h : latency) {
+            all.add(h);
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"config\": {");
+        String sep = "";
+        for (Map.Entry<String, String> e : options.entrySet()) {
+            json.append(sep).append('"').append(e.getKey()).append("\": \"").append(escape(e.getValue())).append('"');
+            sep = ", ";
+        }
+        json.append("},\n");
+        json.append("  \"jvm\": {\"version\": \"").append(escape(System.getProperty("java.version")))
+                .append("\", \"vm\": \"").append(escape(System.getProperty("java.vm.name")))
+                .append("\", \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory())
+                .append(", \"compressedOops\": ").append(MemoryStats.COMPRESSED_OOPS).append("},\n");
+        json.append("  \"tree\": {\"size\": ").append(tree.size())
+                .append(", \"height\": ").append(tree.height())
+                .append(", \"prefillSeconds\": ").append(format(prefillNanos / 1e9))
+                .append(", \"estimatedBytes\": ").append(tree.memoryStats(1000).totalBytes()).append("},\n");
+        json.append("  \"run\": {\"seconds\": ").append(format(elapsed / 1e9))
+                .append(", \"operations\": ").append(ops)
+                .append(", \"opsPerSecond\": ").append(format(ops / (elapsed / 1e9))).append("},\n");
+        json.append("  \"latencyNanos\": {\n");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            json.append("    \"").append(OPERATIONS[i]).append("\": ").append(summary(latency[i])).append(",\n");
+        }
+        json.append("    \"all\": ").append(summary(all)).append("\n  },\n");
+        LatencyHistogram pauses = gc.pauses();
+        json.append("  \"gc\": {\"collections\": ").append(pauses.count())
+                .append(", \"totalPauseMillis\": ").append(gc.totalPauseMillis())
+                .append(", \"pauseMillis\": ").append(summary(pauses))
+                .append(", \"collectors\": ").append(gc.collectors()).append("},\n");
+        json.append("  \"allocation\": {\"bytes\": ").append(allocated)
+                .append(", \"bytesPerSecond\": ").append(format(allocated / (elapsed / 1e9)))
+                .append(", \"bytesPerOperation\": ").append(format(ops == 0 ? 0 : (double) allocated / ops)).append("},\n");
+        json.append("  \"heap\": {\"usedAfterPrefill\": ").append(heapAfterPrefill.getUsed())
+                .append(", \"usedAtEnd\": ").append(heapAtEnd.getUsed())
+                .append(", \"peakSampled\": ").append(peakHeap)
+                .append(", \"committed\": ").append(heapAtEnd.getCommitted()).append("},\n");
+        json.append("  \"checksum\": ").append(sink).append('\n');
+        json.append("}\n");
+
+        String out = options.get("out");
+        if (out.isEmpty()) {
+            System.out.print(json);
+        } else {
+            try (Writer w = new FileWriter(out)) {
+                w.write(json.toString());
+            }
+        }
+        gc.close();
+    }
+
+    // 解析 "get=60,put=20" 形式的操作权重
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split("=");
+            int op = -1;
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                if (OPERATIONS[i].equals(kv[0])) {
+                    op = i;
+                }
+            }
+            if (op < 0 || kv.length != 2) {
+                throw new IllegalArgumentException("bad operation mix: " + mix);
+            }
+            weights[op] = Integer.parseInt(kv[1]);
+        }
+        int total = 0;
+        for (int w : weights) {
+            total += w;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("operation mix has no positive weight: " + mix);
+        }
+        return weights;
+    }
+
+    // 按权重选出操作，r 在 [0, 权重之和) 之间
+    private static int pick(int[] weights, int r) {
+        int op = 0;
+        while (r >= weights[op]) {
+            r -= weights[op];
+            op++;
+        }
+        return op;
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads, long threadId) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId);
+        }
+        return -1;
+    }
+
+    private static MemoryUsage heapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    }
+
+    private static String summary(LatencyHistogram h) {
+        return "{\"count\": " + h.count()
+                + ", \"mean\": " + format(h.mean())
+                + ", \"p50\": " + h.percentile(50)
+                + ", \"p99\": " + h.percentile(99)
+                + ", \"p99.9\": " + h.percentile(99.9)
+                + ", \"max\": " + h.max() + "}";
+    }
+
+    private static String format(double d) {
+        return String.format(Locale.ROOT, "%.3f", d);
+    }
+
+    private static String escape(String s) {
+        return s == null ? "" : s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * 通过 GC 通知记录每次垃圾回收的停顿时间。并发收集器报告的时间包含并发阶段，是停顿的上界。
+     */
+    private static final class GcMonitor implements NotificationListener {
+        private final List<NotificationEmitter> emitters = new ArrayList<>();
+        private final Map<String, long[]> baseline = new LinkedHashMap<>();
+        private LatencyHistogram pauses = new LatencyHistogram();
+
+        GcMonitor() {
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (bean instanceof NotificationEmitter) {
+                    ((NotificationEmitter) bean).addNotificationListener(this, null, null);
+                    emitters.add((NotificationEmitter) bean);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void handleNotification(Notification notification, Object handback) {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                pauses.record(info.getGcInfo().getDuration());
+            }
+        }
+
+        // 丢弃预填充阶段的记录，并以当前的累计值作为基线
+        synchronized void reset() {
+            pauses = new LatencyHistogram();
+            baseline.clear();
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                baseline.put(bean.getName(), new long[]{bean.getCollectionCount(), bean.getCollectionTime()});
+            }
+        }
+
+        synchronized LatencyHistogram pauses() {
+            return pauses;
+        }
+
+        synchronized long totalPauseMillis() {
+            return Math.round(pauses.mean() * pauses.count());
+        }
+
+        // 每个收集器自基线以来的回收次数和累计时间
+        String collectors() {
+            StringBuilder sb = new StringBuilder("{");
+            String sep = "";
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                long[] base = baseline.getOrDefault(bean.getName(), new long[2]);
+                sb.append(sep).append('"').append(escape(bean.getName())).append("\": {\"collections\": ")
+                        .append(bean.getCollectionCount() - base[0]).append(", \"millis\": ")
+                        .append(bean.getCollectionTime() - base[1]).append('}');
+                sep = ", ";
+            }
+            return sb.append('}').toString();
+        }
+
+        void close() {
+            for (NotificationEmitter emitter : emitters) {
+                try {
+                    emitter.removeNotificationListener(this);
+                } catch (ListenerNotFoundException e) {
+                    // 已经移除
+                }
+            }
+        }
+    }
+}
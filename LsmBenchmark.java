@@ -0,0 +1,66 @@
+package com.pseudoyu.tree.rb;
+
+import java.util.SplittableRandom;
+
+/**
+ * 比较普通红黑树与 {@link LsmRedBlackTree} 在随机写入负载下的吞吐量，以及写入完成后的随机读取耗时。
+ * <p>
+ * 用法：{@code java com.pseudoyu.tree.rb.LsmBenchmark [puts] [keyRange] [memtableSize]}，默认写入 5000000 次，
+ * 键在 [0, 10000000) 中均匀选取，内存表容量为 4096。LSM 的写入时间包含最后一次 flush，
+ * 后台合并模式下不等待积压的合并完成。
+ */
+public class LsmBenchmark {
+
+    public static void main(String[] args) {
+        final int puts = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        final int keyRange = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+        final int memtableSize = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+        int[] keys = new int[puts];
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < puts; i++) {
+            keys[i] = random.nextInt(keyRange);
+        }
+
+        System.out.printf("%-16s %14s %14s%n", "", "puts/s", "ns/get");
+
+        RedBlackTree<Integer, Integer> plain = new RedBlackTree<>();
+        long start = System.nanoTime();
+        for (int key : keys) {
+            plain.put(key, key);
+        }
+        long writes = System.nanoTime() - start;
+        start = System.nanoTime();
+        long sink = 0;
+        for (int i = 0; i < puts; i += 8) {
+            Integer v = plain.get(keys[i]);
+            sink += v == null ? 0 : v;
+        }
+        long reads = System.nanoTime() - start;
+        print("red-black tree", puts, writes, reads);
+
+        for (boolean background : new boolean[]{true, false}) {
+            LsmRedBlackTree<Integer, Integer> lsm = new LsmRedBlackTree<>(memtableSize, background);
+            start = System.nanoTime();
+            for (int key : keys) {
+                lsm.put(key, key);
+            }
+            lsm.flush();
+            writes = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < puts; i += 8) {
+                Integer v = lsm.get(keys[i]);
+                sink += v == null ? 0 : v;
+            }
+            reads = System.nanoTime() - start;
+            lsm.close();
+            print(background ? "lsm (background)" : "lsm (inline)", puts, writes, reads);
+        }
+        if (sink == 42) {
+            System.out.print("");  // 防止读取被优化掉
+        }
+    }
+
+    private static void print(String name, int puts, long writeNanos, long readNanos) {
+        System.out.printf("%-16s %14.0f %14.1f%n", name, puts * 1e9 / writeNanos, readNanos / ((puts + 7) / 8.0));
+    }
+}
@@ -0,0 +1,632 @@
+package com.pseudoyu.tree.rb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 日志结构（LSM）的有序符号表：写入先进入一棵较小的可变 {@link RedBlackTree}（内存表），
+ * 内存表写满后按顺序冻结为一个只读的有序段（{@link FrozenRedBlackTree}），有序段再在后台两两合并。
+ * 有序段很快就会被合并掉，所以只保留有序数组，在上面直接二分查找，不构造 Eytzinger 数组。
+ * <p>
+ * 写操作只在内存表这棵小树上平衡，树的高度由内存表的容量而不是总键数决定，节点也都留在缓存中；
+ * 冻结和合并都是顺序扫描，每个键一共只会被合并 O(log(n / m)) 次。删除写入一个墓碑，
+ * 在合并进最老的有序段时才真正丢弃。
+ * <p>
+ * 有序段按从新到旧排列，相邻两段中较老的一段不超过较新一段的两倍时就把它们合并，
+ * 因此段的大小从新到旧至少成倍增长，段数保持在 O(log(n / m))。读操作依次查询内存表和各段，
+ * 先用每段的最小键和最大键跳过不可能包含目标的段，同一个键以最新的版本为准。
+ * <p>
+ * 所有公有方法都在 {@code this} 上同步；后台合并只在挑选和替换有序段时短暂持有锁，
+ * 合并本身在锁外进行。有序段过多时写操作会等待后台合并赶上。
+ *
+ * @param <Key>   键的类型
+ * @param <Value> 值的类型
+ */
+@SuppressWarnings("unchecked")
+public class LsmRedBlackTree<Key extends Comparable<Key>, Value> implements AutoCloseable {
+
+    // 默认的内存表容量：内存表的节点连同键和值可以留在二级缓存中
+    private static final int DEFAULT_MEMTABLE_SIZE = 4096;
+
+    // 有序段数量达到该值时写操作等待后台合并
+    private static final int MAX_RUNS = 24;
+
+    // 删除留下的墓碑，与任何值都不相等
+    private static final Object TOMBSTONE = new Object();
+
+    private final int memtableSize;                         // 内存表容量
+    private RedBlackTree<Key, Object> memtable = new RedBlackTree<>();
+    private List<FrozenRedBlackTree<Key, Object>> runs = new ArrayList<>(); // 从新到旧，只整体替换，不原地修改
+    private final ExecutorService merger;                   // 后台合并线程；同步合并时为 null
+    private boolean merging;                                // 是否已经提交了后台合并任务
+    private boolean closed;                                 // 是否已经停止后台合并
+
+    /**
+     * 初始化一个使用默认内存表容量并在后台合并的空符号表。
+     */
+    public LsmRedBlackTree() {
+        this(DEFAULT_MEMTABLE_SIZE, true);
+    }
+
+    /**
+     * 初始化一个空的符号表。
+     *
+     * @param memtableSize    内存表容量，写满后冻结为有序段
+     * @param backgroundMerge 是否在后台线程中合并有序段；为 false 时由写满内存表的写操作同步合并
+     * @throws IllegalArgumentException 如果内存表容量不是正数
+     */
+    public LsmRedBlackTree(int memtableSize, boolean backgroundMerge) {
+        if (memtableSize <= 0) {
+            throw new IllegalArgumentException("memtable size must be positive: " + memtableSize);
+        }
+        this.memtableSize = memtableSize;
+        this.merger = backgroundMerge ? Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "lsm-red-black-tree-merger");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    /***************************************************************************
+     *  写操作。
+     ***************************************************************************/
+
+    /**
+     * 将指定的键值对插入到符号表中，覆盖旧的值。如果值为 null，则删除该键。
+     *
+     * @param key 键
+     * @param val 值
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public synchronized void put(Key key, Value val) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to put() is null");
+        }
+        write(key, val == null ? TOMBSTONE : val);
+    }
+
+    /**
+     * 删除指定的键。键不存在时也会写入一个墓碑，以遮蔽较老的有序段中可能存在的版本。
+     *
+     * @param key 键
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public synchronized void delete(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to delete() is null");
+        }
+        write(key, TOMBSTONE);
+    }
+
+    private void write(Key key, Object val) {
+        memtable.put(key, val);
+        if (memtable.distinctSize() >= memtableSize) {
+            flush();
+        }
+    }
+
+    /**
+     * 把内存表冻结为一个新的有序段，然后按需合并有序段。
+     */
+    public synchronized void flush() {
+        if (memtable.isEmpty()) {
+            return;
+        }
+        List<FrozenRedBlackTree<Key, Object>> next = new ArrayList<>(runs.size() + 1);
+        next.add(memtable.freeze(false));
+        next.addAll(runs);
+        runs = next;
+        memtable = new RedBlackTree<>();
+        if (merger == null || closed) {
+            for (int i = pick(runs); i >= 0; i = pick(runs)) {
+                replace(runs, i, merge(runs.get(i), runs.get(i + 1), i + 2 == runs.size()));
+            }
+            return;
+        }
+        if (!merging && pick(runs) >= 0) {
+            merging = true;
+            merger.execute(this::mergeInBackground);
+        }
+        // 只在确实有合并在进行时等待：合并失败或者无事可做时 merging 会被清除，写操作不会永远阻塞
+        boolean interrupted = false;
+        while (runs.size() >= MAX_RUNS && merging && !closed && !interrupted) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 把所有有序段和内存表合并成一个有序段，并丢弃所有墓碑。在调用线程中同步执行。
+     */
+    public synchronized void compact() {
+        flush();
+        while (runs.size() > 1 || runs.size() == 1 && hasTombstones(runs.get(0))) {
+            int i = runs.size() - 2;
+            if (i < 0) {
+                replace(runs, 0, merge(runs.get(0), null, true));
+            } else {
+                replace(runs, i, merge(runs.get(i), runs.get(i + 1), true));
+            }
+        }
+    }
+
+    /**
+     * 停止后台合并线程。关闭后仍然可以读写，写满内存表的写操作改为同步合并。
+     */
+    @Override
+    public synchronized void close() {
+        if (merger != null && !closed) {
+            closed = true;
+            merger.shutdownNow();
+            notifyAll();
+        }
+    }
+
+    /**
+     * 返回当前有序段的数量。
+     *
+     * @return 有序段的数量
+     */
+    public synchronized int runCount() {
+        return runs.size();
+    }
+
+    // 后台合并：在锁内挑选，在锁外合并，再在锁内替换。flush 只在最前面插入有序段，
+    // 所以被合并的两段只要还在就仍然相邻；如果它们已经被 compact 合并掉了，就丢弃这次的结果。
+    // 无论正常结束还是合并抛出异常（例如键的 compareTo），都清除 merging 并唤醒等待的写操作，
+    // 下一次 flush 会重新提交合并任务
+    private void mergeInBackground() {
+        try {
+            while (true) {
+                List<FrozenRedBlackTree<Key, Object>> snapshot;
+                int i;
+                synchronized (this) {
+                    snapshot = runs;
+                    i = pick(snapshot);
+                    if (i < 0) {
+                        return;
+                    }
+                }
+                FrozenRedBlackTree<Key, Object> merged = merge(snapshot.get(i), snapshot.get(i + 1), i + 2 == snapshot.size());
+                synchronized (this) {
+                    int j = runs.indexOf(snapshot.get(i));
+                    if (j >= 0 && j + 1 < runs.size() && runs.get(j + 1) == snapshot.get(i + 1)) {
+                        replace(runs, j, merged);
+                    }
+                    notifyAll();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                merging = false;
+                notifyAll();
+            }
+        }
+    }
+
+    // 返回第一对需要合并的相邻有序段中较新一段的下标；不需要合并时返回 -1。
+    // 有序段达到 MAX_RUNS 时，即使大小比例不要求合并，也选出两段之和最小的一对强制合并，
+    // 保证等待合并的写操作总能等到有序段减少
+    private static int pick(List<? extends FrozenRedBlackTree<?, ?>> runs) {
+        for (int i = 0; i + 1 < runs.size(); i++) {
+            if (runs.get(i + 1).distinctSize() <= 2L * runs.get(i).distinctSize()) {
+                return i;
+            }
+        }
+        if (runs.size() < MAX_RUNS) {
+            return -1;
+        }
+        int best = 0;
+        for (int i = 1; i + 1 < runs.size(); i++) {
+            if ((long) runs.get(i).distinctSize() + runs.get(i + 1).distinctSize()
+                    < (long) runs.get(best).distinctSize() + runs.get(best + 1).distinctSize()) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // 用 merged 替换下标为 i 和 i + 1 的两段（只有一段时只替换它）；丢弃墓碑后为空的段直接移除，
+    // 这样每个有序段都有最小键和最大键可以作为过滤的边界
+    private void replace(List<FrozenRedBlackTree<Key, Object>> current, int i, FrozenRedBlackTree<Key, Object> merged) {
+        List<FrozenRedBlackTree<Key, Object>> next = new ArrayList<>(current);
+        if (i + 1 < next.size()) {
+            next.remove(i + 1);
+        }
+        if (merged.isEmpty()) {
+            next.remove(i);
+        } else {
+            next.set(i, merged);
+        }
+        runs = next;
+    }
+
+    /**
+     * 合并两个有序段，同一个键保留较新的版本。older 为 null 时只复制 newer。
+     *
+     * @param newer          较新的有序段
+     * @param older          较老的有序段
+     * @param dropTombstones 结果是否为最老的一段；是则丢弃墓碑
+     * @return 合并后的有序段
+     */
+    private FrozenRedBlackTree<Key, Object> merge(FrozenRedBlackTree<Key, Object> newer,
+                                                  FrozenRedBlackTree<Key, Object> older,
+                                                  boolean dropTombstones) {
+        Object[] ak = newer.keyArray();
+        Object[] av = newer.valueArray();
+        Object[] bk = older == null ? new Object[0] : older.keyArray();
+        Object[] bv = older == null ? new Object[0] : older.valueArray();
+        Object[] keys = new Object[ak.length + bk.length];
+        Object[] vals = new Object[keys.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ak.length || j < bk.length) {
+            int cmp = i == ak.length ? 1 : j == bk.length ? -1 : ((Key) ak[i]).compareTo((Key) bk[j]);
+            Object key;
+            Object val;
+            if (cmp <= 0) {
+                key = ak[i];
+                val = av[i++];
+                if (cmp == 0) {
+                    j++;
+                }
+            } else {
+                key = bk[j];
+                val = bv[j++];
+            }
+            if (val != TOMBSTONE || !dropTombstones) {
+                keys[n] = key;
+                vals[n++] = val;
+            }
+        }
+        if (n < keys.length) {
+            keys = Arrays.copyOf(keys, n);
+            vals = Arrays.copyOf(vals, n);
+        }
+        return new FrozenRedBlackTree<>(keys, vals, null, false);
+    }
+
+    private static boolean hasTombstones(FrozenRedBlackTree<?, Object> run) {
+        for (Object v : run.valueArray()) {
+            if (v == TOMBSTONE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /***************************************************************************
+     *  点查询。
+     ***************************************************************************/
+
+    /**
+     * 返回与给定键关联的值。
+     *
+     * @param key 要查询的键
+     * @return 与该键关联的值；如果不存在则返回 null
+     * @throws IllegalArgumentException 如果给定的键为 null
+     */
+    public synchronized Value get(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to get() is null");
+        }
+        Object val = lookup(key);
+        return val == TOMBSTONE ? null : (Value) val;
+    }
+
+    /**
+     * 判断此符号表是否包含给定的键。
+     *
+     * @param key 要检查的键
+     * @return 如果包含则返回 true
+     * @throws IllegalArgumentException 如果给定的键为 null
+     */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    // 返回键的最新版本：值、墓碑，或者在任何一层都不存在时返回 null
+    private Object lookup(Key key) {
+        Object val = memtable.get(key);
+        if (val != null) {
+            return val;
+        }
+        for (FrozenRedBlackTree<Key, Object> run : runs) {
+            if (key.compareTo(run.min()) < 0 || key.compareTo(run.max()) > 0) {
+                continue;
+            }
+            val = run.get(key);
+            if (val != null) {
+                return val;
+            }
+        }
+        return null;
+    }
+
+    /***************************************************************************
+     *  有序查询。
+     ***************************************************************************/
+
+    /**
+     * 判断符号表是否为空。需要跳过墓碑，最坏情况下与墓碑的数量成正比。
+     *
+     * @return 如果为空则返回 true
+     */
+    public synchronized boolean isEmpty() {
+        return higher(null, true) == null;
+    }
+
+    /**
+     * 返回键的数量。需要归并所有层并去除重复和墓碑，耗时与各层的总键数成正比。
+     *
+     * @return 键的数量
+     */
+    public synchronized int size() {
+        return scan(null, null, null);
+    }
+
+    /**
+     * 返回最小的键。
+     *
+     * @return 最小的键
+     * @throws NoSuchElementException 如果符号表为空
+     */
+    public synchronized Key min() {
+        Key key = higher(null, true);
+        if (key == null) {
+            throw new NoSuchElementException("called min() with empty symbol table");
+        }
+        return key;
+    }
+
+    /**
+     * 返回最大的键。
+     *
+     * @return 最大的键
+     * @throws NoSuchElementException 如果符号表为空
+     */
+    public synchronized Key max() {
+        Key key = lower(null, true);
+        if (key == null) {
+            throw new NoSuchElementException("called max() with empty symbol table");
+        }
+        return key;
+    }
+
+    /**
+     * 返回小于等于给定键的最大键。
+     *
+     * @param key 键
+     * @return 小于等于 key 的最大键；如果不存在则返回 null
+     * @throws IllegalArgumentException 如果键为 null
+     * @throws NoSuchElementException   如果符号表为空
+     */
+    public synchronized Key floor(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to floor() is null");
+        }
+        if (isEmpty()) {
+            throw new NoSuchElementException("called floor() with empty symbol table");
+        }
+        return lower(key, true);
+    }
+
+    /**
+     * 返回大于等于给定键的最小键。
+     *
+     * @param key 键
+     * @return 大于等于 key 的最小键；如果不存在则返回 null
+     * @throws IllegalArgumentException 如果键为 null
+     * @throws NoSuchElementException   如果符号表为空
+     */
+    public synchronized Key ceiling(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to ceiling() is null");
+        }
+        if (isEmpty()) {
+            throw new NoSuchElementException("called ceiling() with empty symbol table");
+        }
+        return higher(key, true);
+    }
+
+    /**
+     * 按顺序返回所有的键。
+     *
+     * @return 所有的键
+     */
+    public synchronized Iterable<Key> keys() {
+        Queue<Key> queue = new LinkedList<>();
+        scan(null, null, queue);
+        return queue;
+    }
+
+    /**
+     * 按顺序返回 [lo, hi] 之间的键。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 区间内的键
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public synchronized Iterable<Key> keys(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to keys() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to keys() is null");
+        }
+        Queue<Key> queue = new LinkedList<>();
+        if (lo.compareTo(hi) <= 0) {
+            scan(lo, hi, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * 返回 [lo, hi] 之间的键的数量，耗时与区间内各层的键数之和成正比。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 区间内的键的数量
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public synchronized int size(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to size() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to size() is null");
+        }
+        return lo.compareTo(hi) > 0 ? 0 : scan(lo, hi, null);
+    }
+
+    /**
+     * 返回大于（inclusive 时为大于等于）bound 的最小存活键；bound 为 null 表示负无穷。
+     * 先在每一层中找出候选，取最小的一个，如果它的最新版本是墓碑，就越过它继续查找。
+     */
+    private Key higher(Key bound, boolean inclusive) {
+        while (true) {
+            Key best = null;
+            if (!memtable.isEmpty()) {
+                best = bound == null ? memtable.min()
+                        : inclusive ? memtable.ceiling(bound) : first(memtable.higherK(bound, 1));
+            }
+            for (FrozenRedBlackTree<Key, Object> run : runs) {
+                if (bound != null && bound.compareTo(run.max()) >= (inclusive ? 1 : 0)) {
+                    continue;
+                }
+                Object[] keys = run.keyArray();
+                int i = bound == null ? 0 : run.rank(bound);
+                if (!inclusive && i < keys.length && bound.compareTo((Key) keys[i]) == 0) {
+                    i++;
+                }
+                if (i < keys.length && (best == null || ((Key) keys[i]).compareTo(best) < 0)) {
+                    best = (Key) keys[i];
+                }
+            }
+            if (best == null || lookup(best) != TOMBSTONE) {
+                return best;
+            }
+            bound = best;
+            inclusive = false;
+        }
+    }
+
+    /**
+     * 返回小于（inclusive 时为小于等于）bound 的最大存活键；bound 为 null 表示正无穷。
+     */
+    private Key lower(Key bound, boolean inclusive) {
+        while (true) {
+            Key best = null;
+            if (!memtable.isEmpty()) {
+                best = bound == null ? memtable.max()
+                        : inclusive ? memtable.floor(bound) : first(memtable.lowerK(bound, 1));
+            }
+            for (FrozenRedBlackTree<Key, Object> run : runs) {
+                if (bound != null && bound.compareTo(run.min()) <= (inclusive ? -1 : 0)) {
+                    continue;
+                }
+                Object[] keys = run.keyArray();
+                int i = bound == null ? keys.length : run.rank(bound);
+                if (inclusive && i < keys.length && bound.compareTo((Key) keys[i]) == 0) {
+                    i++;
+                }
+                if (i > 0 && (best == null || ((Key) keys[i - 1]).compareTo(best) > 0)) {
+                    best = (Key) keys[i - 1];
+                }
+            }
+            if (best == null || lookup(best) != TOMBSTONE) {
+                return best;
+            }
+            bound = best;
+            inclusive = false;
+        }
+    }
+
+    private static <T> T first(Iterable<T> items) {
+        for (T t : items) {
+            return t;
+        }
+        return null;
+    }
+
+    /**
+     * 按键的顺序归并内存表和各有序段中 [lo, hi] 内的键（端点为 null 表示不限），
+     * 同一个键只取最新的版本并跳过墓碑。queue 不为 null 时把存活的键加入其中。
+     *
+     * @return 存活的键的数量
+     */
+    private int scan(Key lo, Key hi, Queue<Key> queue) {
+        // 每一层对应一段有序数组 keys[pos, end)，下标 0 是内存表，越靠后越老
+        int levels = runs.size() + 1;
+        Object[][] keys = new Object[levels][];
+        Object[][] vals = new Object[levels][];
+        int[] pos = new int[levels];
+        int[] end = new int[levels];
+        if (!memtable.isEmpty()) {
+            List<Object> mk = new ArrayList<>();
+            for (Key k : lo == null ? memtable.keys() : memtable.keys(lo, hi)) {
+                mk.add(k);
+            }
+            keys[0] = mk.toArray();
+            vals[0] = new Object[keys[0].length];
+            for (int i = 0; i < keys[0].length; i++) {
+                vals[0][i] = memtable.get((Key) keys[0][i]);
+            }
+        } else {
+            keys[0] = new Object[0];
+            vals[0] = keys[0];
+        }
+        end[0] = keys[0].length;
+        for (int l = 1; l < levels; l++) {
+            FrozenRedBlackTree<Key, Object> run = runs.get(l - 1);
+            keys[l] = run.keyArray();
+            vals[l] = run.valueArray();
+            if (lo == null) {
+                end[l] = keys[l].length;
+            } else if (lo.compareTo(run.max()) <= 0 && hi.compareTo(run.min()) >= 0) {
+                pos[l] = run.rank(lo);
+                end[l] = pos[l] + run.size(lo, hi);
+            }
+        }
+        int count = 0;
+        while (true) {
+            // 找出各层当前最小的键；相等时保留较新的一层
+            int min = -1;
+            for (int l = 0; l < levels; l++) {
+                if (pos[l] < end[l] && (min < 0 || ((Key) keys[l][pos[l]]).compareTo((Key) keys[min][pos[min]]) < 0)) {
+                    min = l;
+                }
+            }
+            if (min < 0) {
+                return count;
+            }
+            Key key = (Key) keys[min][pos[min]];
+            Object val = vals[min][pos[min]];
+            for (int l = min; l < levels; l++) {
+                if (pos[l] < end[l] && key.compareTo((Key) keys[l][pos[l]]) == 0) {
+                    pos[l]++;
+                }
+            }
+            if (val != TOMBSTONE) {
+                count++;
+                if (queue != null) {
+                    queue.add(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.pseudoyu.tree.rb;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LsmRedBlackTreeTest {
+
+    @Test
+    public void newerLevelsShadowOlderOnes() {
+        LsmRedBlackTree<Integer, String> lsm = new LsmRedBlackTree<>(8, false);
+        for (int i = 0; i < 100; i++) {
+            lsm.put(i, "a" + i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            lsm.put(i, "b" + i);
+        }
+        for (int i = 10; i < 20; i++) {
+            lsm.delete(i);
+        }
+        assertTrue(lsm.runCount() > 1);
+
+        assertEquals("b4", lsm.get(4));
+        assertEquals("a5", lsm.get(5));
+        assertNull(lsm.get(15));
+        assertFalse(lsm.contains(10));
+        assertEquals(90, lsm.size());
+        assertEquals(Integer.valueOf(9), lsm.floor(15));
+        assertEquals(Integer.valueOf(20), lsm.ceiling(10));
+        assertEquals(Integer.valueOf(0), lsm.min());
+        assertEquals(Integer.valueOf(99), lsm.max());
+
+        StringBuilder keys = new StringBuilder();
+        for (Integer key : lsm.keys(7, 22)) {
+            keys.append(key).append(' ');
+        }
+        assertEquals("7 8 9 20 21 22 ", keys.toString());
+        assertEquals(6, lsm.size(7, 22));
+
+        lsm.compact();
+        assertEquals(1, lsm.runCount());
+        assertEquals(90, lsm.size());
+        assertEquals("b98", lsm.get(98));
+    }
+
+    @Test(timeout = 30000)
+    public void failedBackgroundMergeDoesNotBlockWriters() throws InterruptedException {
+        try (LsmRedBlackTree<FlakyKey, Integer> lsm = new LsmRedBlackTree<>(4, true)) {
+            for (int i = 0; i < 7; i++) {
+                lsm.put(new FlakyKey(i), i);
+            }
+            // 两段大小相近，flush 提交后台合并，合并中的比较抛出异常
+            FlakyKey.failures = new CountDownLatch(1);
+            lsm.flush();
+            assertTrue(FlakyKey.failures.await(10, TimeUnit.SECONDS));
+            FlakyKey.failures = null;
+
+            // 合并任务已经结束，有序段再多写操作也不会一直等待；之后的 flush 会重新提交合并
+            for (int i = 7; i < 400; i++) {
+                lsm.put(new FlakyKey(i), i);
+            }
+            lsm.compact();
+            assertEquals(1, lsm.runCount());
+            assertEquals(400, lsm.size());
+            assertEquals(Integer.valueOf(123), lsm.get(new FlakyKey(123)));
+        }
+    }
+
+    // 测试开关打开时比较会抛出异常的键
+    private static final class FlakyKey implements Comparable<FlakyKey> {
+        private static volatile CountDownLatch failures;
+        private final int id;
+
+        FlakyKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(FlakyKey other) {
+            CountDownLatch latch = failures;
+            if (latch != null) {
+                latch.countDown();
+                throw new IllegalStateException("comparison failed");
+            }
+            return Integer.compare(id, other.id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FlakyKey && ((FlakyKey) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+
+    @Test
+    public void backgroundMergeKeepsEveryWrite() {
+        try (LsmRedBlackTree<Integer, Integer> lsm = new LsmRedBlackTree<>(64, true)) {
+            for (int i = 0; i < 20000; i++) {
+                lsm.put(i * 7919 % 20000, i);
+            }
+            lsm.flush();
+            assertEquals(20000, lsm.size());
+            for (int i = 0; i < 20000; i += 97) {
+                assertEquals(Integer.valueOf(i), lsm.get(i * 7919 % 20000));
+            }
+        }
+    }
+}
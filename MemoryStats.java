@@ -0,0 +1,259 @@
+package com.pseudoyu.tree.rb;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * 一棵树的内存占用估计，由 {@link RedBlackTree#memoryStats()} 返回。
+ * <p>
+ * 节点的浅大小按当前 JVM 的对象布局计算：对象头、引用宽度（是否开启压缩指针）和对齐粒度
+ * 在类加载时从 HotSpot 的诊断接口读取，读取失败时按 64 位 JVM 的默认设置估计。
+ * 键和值的深大小通过反射遍历抽样得到，共享的对象（如缓存的小整数）会被重复计算，因此只是上界估计。
+ */
+public final class MemoryStats {
+
+    // 估计深大小时最多遍历的对象数，避免在巨大的对象图上耗时过长
+    private static final int DEEP_SIZE_LIMIT = 10000;
+
+    static final boolean COMPRESSED_OOPS;
+    static final int REFERENCE_BYTES;
+    static final int HEADER_BYTES;
+    static final int ARRAY_HEADER_BYTES;
+    static final int ALIGNMENT;
+
+    static {
+        boolean is64 = !"32".equals(System.getProperty("sun.arch.data.model"));
+        boolean oops = is64 && Runtime.getRuntime().maxMemory() < (32L << 30);
+        boolean classPointers = oops;
+        int alignment = 8;
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            oops = Boolean.parseBoolean(bean.getVMOption("UseCompressedOops").getValue());
+            classPointers = Boolean.parseBoolean(bean.getVMOption("UseCompressedClassPointers").getValue());
+            alignment = Integer.parseInt(bean.getVMOption("ObjectAlignmentInBytes").getValue());
+        } catch (RuntimeException | LinkageError e) {
+            // 不是 HotSpot，或选项不存在：保留上面的估计
+        }
+        COMPRESSED_OOPS = is64 && oops;
+        REFERENCE_BYTES = is64 && !oops ? 8 : 4;
+        HEADER_BYTES = !is64 ? 8 : classPointers ? 12 : 16;
+        ARRAY_HEADER_BYTES = (int) align(HEADER_BYTES + 4, 8);
+        ALIGNMENT = alignment;
+    }
+
+    private final int nodes;
+    private final int tombstones;
+    private final long bytesPerNode;
+    private final int sampled;
+    private final long keyBytes;
+    private final long valueBytes;
+
+    MemoryStats(int nodes, int tombstones, long bytesPerNode, int sampled, long keyBytes, long valueBytes) {
+        this.nodes = nodes;
+        this.tombstones = tombstones;
+        this.bytesPerNode = bytesPerNode;
+        this.sampled = sampled;
+        this.keyBytes = keyBytes;
+        this.valueBytes = valueBytes;
+    }
+
+    /**
+     * 返回树中的节点数量，包括墓碑节点。
+     *
+     * @return 节点数量
+     */
+    public int nodes() {
+        return nodes;
+    }
+
+    /**
+     * 返回墓碑节点的数量。
+     *
+     * @return 墓碑节点数量
+     */
+    public int tombstones() {
+        return tombstones;
+    }
+
+    /**
+     * 返回单个节点对象的浅大小（字节）。
+     *
+     * @return 节点的浅大小
+     */
+    public long bytesPerNode() {
+        return bytesPerNode;
+    }
+
+    /**
+     * 返回所有节点对象的浅大小之和（字节）。
+     *
+     * @return 节点占用的字节数
+     */
+    public long nodeBytes() {
+        return nodes * bytesPerNode;
+    }
+
+    /**
+     * 返回抽样的节点数；为 0 时 {@link #keyBytes()} 与 {@link #valueBytes()} 也为 0。
+     *
+     * @return 抽样的节点数
+     */
+    public int sampled() {
+        return sampled;
+    }
+
+    /**
+     * 返回由抽样外推出的所有键的深大小之和（字节）。
+     *
+     * @return 键占用的字节数
+     */
+    public long keyBytes() {
+        return keyBytes;
+    }
+
+    /**
+     * 返回由抽样外推出的所有存活值的深大小之和（字节）。
+     *
+     * @return 值占用的字节数
+     */
+    public long valueBytes() {
+        return valueBytes;
+    }
+
+    /**
+     * 返回估计的总保留字节数。
+     *
+     * @return 节点、键和值占用的字节数之和
+     */
+    public long totalBytes() {
+        return nodeBytes() + keyBytes + valueBytes;
+    }
+
+    /**
+     * 返回当前 JVM 是否开启了压缩指针。
+     *
+     * @return 如果引用占 4 个字节则返回 true
+     */
+    public boolean compressedOops() {
+        return COMPRESSED_OOPS;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryStats{nodes=" + nodes
+                + ", tombstones=" + tombstones
+                + ", bytesPerNode=" + bytesPerNode
+                + ", nodeBytes=" + nodeBytes()
+                + ", sampled=" + sampled
+                + ", keyBytes=" + keyBytes
+                + ", valueBytes=" + valueBytes
+                + ", totalBytes=" + totalBytes()
+                + ", compressedOops=" + COMPRESSED_OOPS
+                + '}';
+    }
+
+    /**
+     * 返回一个对象的浅大小：对象头加上字段，按对齐粒度向上取整。
+     *
+     * @param references     引用字段的数量
+     * @param primitiveBytes 基本类型字段占用的字节数
+     * @return 对象的浅大小
+     */
+    static long shallowSize(int references, int primitiveBytes) {
+        return align(HEADER_BYTES + (long) references * REFERENCE_BYTES + primitiveBytes, ALIGNMENT);
+    }
+
+    /**
+     * 通过反射遍历估计从 root 可达的所有对象的大小之和。无法反射访问的字段只计算其浅大小。
+     *
+     * @param root 起点对象
+     * @return 估计的字节数；root 为 null 时为 0
+     */
+    static long deepSize(Object root) {
+        if (root == null) {
+            return 0;
+        }
+        Map<Object, Boolean> seen = new IdentityHashMap<>();
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+        seen.put(root, Boolean.TRUE);
+        long total = 0;
+        while (!stack.isEmpty() && seen.size() <= DEEP_SIZE_LIMIT) {
+            Object o = stack.pop();
+            Class<?> c = o.getClass();
+            if (c == String.class) {
+                // 新版本 JDK 禁止反射访问 String 的内部数组，按每个字符两个字节估计
+                total += shallowSize(1, 8) + align(ARRAY_HEADER_BYTES + 2L * ((String) o).length(), ALIGNMENT);
+                continue;
+            }
+            if (c.isArray()) {
+                int n = Array.getLength(o);
+                Class<?> component = c.getComponentType();
+                total += align(ARRAY_HEADER_BYTES + (long) n * width(component), ALIGNMENT);
+                if (!component.isPrimitive()) {
+                    for (int i = 0; i < n; i++) {
+                        push(Array.get(o, i), seen, stack);
+                    }
+                }
+                continue;
+            }
+            int references = 0;
+            int primitives = 0;
+            for (; c != null; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers())) {
+                        continue;
+                    }
+                    if (f.getType().isPrimitive()) {
+                        primitives += width(f.getType());
+                        continue;
+                    }
+                    references++;
+                    try {
+                        f.setAccessible(true);
+                        push(f.get(o), seen, stack);
+                    } catch (RuntimeException | IllegalAccessException e) {
+                        // 模块系统禁止反射访问时只计算引用本身
+                    }
+                }
+            }
+            total += shallowSize(references, primitives);
+        }
+        return total;
+    }
+
+    private static void push(Object o, Map<Object, Boolean> seen, Deque<Object> stack) {
+        if (o != null && seen.put(o, Boolean.TRUE) == null) {
+            stack.push(o);
+        }
+    }
+
+    // 返回一个字段或数组元素占用的字节数
+    private static int width(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return REFERENCE_BYTES;
+        }
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long bytes, int alignment) {
+        return (bytes + alignment - 1) / alignment * alignment;
+    }
+}
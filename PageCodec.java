@@ -0,0 +1,76 @@
+package com.pseudoyu.tree.rb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 把键或值编码为页面中固定长度字节的编解码器，供 {@link PagedRedBlackTree} 使用。
+ *
+ * @param <T> 被编码的类型
+ */
+public interface PageCodec<T> {
+
+    /**
+     * 64 位整数的编解码器。
+     */
+    PageCodec<Long> LONG = new PageCodec<Long>() {
+        @Override
+        public int size() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, int offset, Long value) {
+            buf.putLong(offset, value);
+        }
+
+        @Override
+        public Long read(ByteBuffer buf, int offset) {
+            return buf.getLong(offset);
+        }
+    };
+
+    /**
+     * 32 位整数的编解码器。
+     */
+    PageCodec<Integer> INTEGER = new PageCodec<Integer>() {
+        @Override
+        public int size() {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, int offset, Integer value) {
+            buf.putInt(offset, value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer buf, int offset) {
+            return buf.getInt(offset);
+        }
+    };
+
+    /**
+     * 返回编码后占用的字节数，所有值都必须相同。
+     *
+     * @return 编码长度
+     */
+    int size();
+
+    /**
+     * 把值写入缓冲区的指定位置。
+     *
+     * @param buf    目标缓冲区
+     * @param offset 写入位置
+     * @param value  要写入的值
+     */
+    void write(ByteBuffer buf, int offset, T value);
+
+    /**
+     * 从缓冲区的指定位置读取值。
+     *
+     * @param buf    源缓冲区
+     * @param offset 读取位置
+     * @return 读取到的值
+     */
+    T read(ByteBuffer buf, int offset);
+}
@@ -0,0 +1,832 @@
+package com.pseudoyu.tree.rb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+/**
+ * 节点保存在磁盘文件中的红黑树，用于超过内存容量的索引。
+ * <p>
+ * 文件被划分为固定大小的页面：第 0 页是文件头，其余页面按顺序存放定长的节点记录。
+ * 每条记录包含键、值、左右子节点编号、子树计数和颜色，节点编号 0 表示 null。
+ * 页面通过 {@link BufferPool} 访问，缓冲池的内存上限可以配置，脏页在淘汰、{@link #flush()} 或
+ * {@link #close()} 时写回文件；被删除的节点进入空闲链表并被后续插入复用。
+ * <p>
+ * 提供与 {@link RedBlackTree} 相同的 get/put/delete/floor/ceiling/rank/select/range 接口，
+ * 以及缓冲池的命中统计，便于确定缓冲池的大小。此类不是线程安全的。
+ */
+public class PagedRedBlackTree<Key extends Comparable<Key>, Value> implements Closeable {
+
+    // 默认的页面大小和缓冲池内存上限
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private static final int MAGIC = 0x52425450;  // "RBTP"
+    private static final long NULL = 0;           // 空节点编号
+
+    // 文件头中各字段的偏移
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_RECORD = 4;
+    private static final int HEADER_ROOT = 8;
+    private static final int HEADER_NEXT = 16;
+    private static final int HEADER_FREE = 24;
+
+    private final FileChannel channel;
+    private final BufferPool pool;
+    private final PageCodec<Key> keyCodec;
+    private final PageCodec<Value> valueCodec;
+
+    // 节点记录中各字段的偏移
+    private final int valOffset;
+    private final int leftOffset;
+    private final int rightOffset;
+    private final int sizeOffset;
+    private final int colorOffset;
+    private final int recordSize;
+    private final int recordsPerPage;
+
+    private long root;      // 根节点编号
+    private long nextId;    // 下一个从未使用过的节点编号
+    private long freeHead;  // 空闲链表的头，通过 left 字段串联
+
+    /**
+     * 使用默认的页面大小和缓冲池上限打开（或创建）一棵磁盘红黑树。
+     *
+     * @param file       页面文件
+     * @param keyCodec   键的编解码器
+     * @param valueCodec 值的编解码器
+     * @throws IOException 如果打开文件失败
+     */
+    public PagedRedBlackTree(Path file, PageCodec<Key> keyCodec, PageCodec<Value> valueCodec) throws IOException {
+        this(file, keyCodec, valueCodec, DEFAULT_PAGE_SIZE, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * 打开（或创建）一棵磁盘红黑树。
+     *
+     * @param file       页面文件
+     * @param keyCodec   键的编解码器
+     * @param valueCodec 值的编解码器
+     * @param pageSize   页面大小（字节），必须能容纳至少一条节点记录
+     * @param cacheBytes 缓冲池的内存上限（字节）
+     * @throws IOException              如果打开文件失败，或者文件不是用相同的记录格式创建的
+     * @throws IllegalArgumentException 如果页面放不下一条节点记录
+     */
+    public PagedRedBlackTree(Path file, PageCodec<Key> keyCodec, PageCodec<Value> valueCodec,
+                             int pageSize, long cacheBytes) throws IOException {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.valOffset = keyCodec.size();
+        this.leftOffset = valOffset + valueCodec.size();
+        this.rightOffset = leftOffset + Long.BYTES;
+        this.sizeOffset = rightOffset + Long.BYTES;
+        this.colorOffset = sizeOffset + Integer.BYTES;
+        this.recordSize = colorOffset + 1;
+        this.recordsPerPage = pageSize / recordSize;
+        if (recordsPerPage < 1 || pageSize < HEADER_FREE + Long.BYTES) {
+            throw new IllegalArgumentException("page size " + pageSize + " cannot hold a record of " + recordSize + " bytes");
+        }
+
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pool = new BufferPool(channel, pageSize, cacheBytes);
+
+        ByteBuffer header = pool.page(0, false);
+        if (channel.size() == 0) {
+            root = NULL;
+            nextId = 1;
+            freeHead = NULL;
+            writeHeader();
+        } else if (header.getInt(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_RECORD) != recordSize) {
+            channel.close();
+            throw new IOException("not a paged red-black tree with " + recordSize + "-byte records: " + file);
+        } else {
+            root = header.getLong(HEADER_ROOT);
+            nextId = header.getLong(HEADER_NEXT);
+            freeHead = header.getLong(HEADER_FREE);
+        }
+    }
+
+    /***************************************************************************
+     *  节点记录的读写。
+     ***************************************************************************/
+
+    private long pageOf(long id) {
+        return 1 + (id - 1) / recordsPerPage;
+    }
+
+    private int offsetOf(long id) {
+        return (int) ((id - 1) % recordsPerPage) * recordSize;
+    }
+
+    private ByteBuffer read(long id) {
+        return pool.page(pageOf(id), false);
+    }
+
+    private ByteBuffer write(long id) {
+        return pool.page(pageOf(id), true);
+    }
+
+    private Key key(long id) {
+        return keyCodec.read(read(id), offsetOf(id));
+    }
+
+    private Value val(long id) {
+        return valueCodec.read(read(id), offsetOf(id) + valOffset);
+    }
+
+    private long left(long id) {
+        return read(id).getLong(offsetOf(id) + leftOffset);
+    }
+
+    private long right(long id) {
+        return read(id).getLong(offsetOf(id) + rightOffset);
+    }
+
+    private int size(long id) {
+        if (id == NULL) {
+            return 0;
+        }
+        return read(id).getInt(offsetOf(id) + sizeOffset);
+    }
+
+    private boolean isRed(long id) {
+        if (id == NULL) {
+            return false;
+        }
+        return read(id).get(offsetOf(id) + colorOffset) != 0;
+    }
+
+    private void setKey(long id, Key key) {
+        keyCodec.write(write(id), offsetOf(id), key);
+    }
+
+    private void setVal(long id, Value val) {
+        valueCodec.write(write(id), offsetOf(id) + valOffset, val);
+    }
+
+    private void setLeft(long id, long left) {
+        write(id).putLong(offsetOf(id) + leftOffset, left);
+    }
+
+    private void setRight(long id, long right) {
+        write(id).putLong(offsetOf(id) + rightOffset, right);
+    }
+
+    private void setSize(long id, int size) {
+        write(id).putInt(offsetOf(id) + sizeOffset, size);
+    }
+
+    private void setRed(long id, boolean red) {
+        write(id).put(offsetOf(id) + colorOffset, (byte) (red ? 1 : 0));
+    }
+
+    // 分配一个新节点，优先复用空闲链表中的节点
+    private long allocate(Key key, Value val) {
+        long id;
+        if (freeHead != NULL) {
+            id = freeHead;
+            freeHead = left(id);
+        } else {
+            id = nextId++;
+        }
+        setKey(id, key);
+        setVal(id, val);
+        setLeft(id, NULL);
+        setRight(id, NULL);
+        setSize(id, 1);
+        setRed(id, true);
+        return id;
+    }
+
+    // 把节点放回空闲链表
+    private void free(long id) {
+        setLeft(id, freeHead);
+        freeHead = id;
+    }
+
+    private void writeHeader() {
+        ByteBuffer header = pool.page(0, true);
+        header.putInt(HEADER_MAGIC, MAGIC);
+        header.putInt(HEADER_RECORD, recordSize);
+        header.putLong(HEADER_ROOT, root);
+        header.putLong(HEADER_NEXT, nextId);
+        header.putLong(HEADER_FREE, freeHead);
+    }
+
+    /***************************************************************************
+     *  标准搜索。
+     ***************************************************************************/
+
+    /**
+     * 返回此符号表中的键值对数量。
+     *
+     * @return 键值对数量
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * 判断此符号表是否为空。
+     *
+     * @return 如果为空则返回 true
+     */
+    public boolean isEmpty() {
+        return root == NULL;
+    }
+
+    /**
+     * 返回与给定键关联的值。
+     *
+     * @param key 要查询的键
+     * @return 与该键关联的值；如果不存在则返回 null
+     * @throws IllegalArgumentException 如果给定的键为 null
+     */
+    public Value get(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to get() is null");
+        }
+        long x = root;
+        while (x != NULL) {
+            int cmp = key.compareTo(key(x));
+            if (cmp < 0) {
+                x = left(x);
+            } else if (cmp > 0) {
+                x = right(x);
+            } else {
+                return val(x);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 判断此符号表是否包含给定的键。
+     *
+     * @param key 要检查的键
+     * @return 如果包含则返回 true
+     * @throws IllegalArgumentException 如果给定的键为 null
+     */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    /***************************************************************************
+     *  红黑树插入与删除。
+     ***************************************************************************/
+
+    /**
+     * 将指定的键值对插入到符号表中。如果符号表已经包含指定的键，则用新的值覆盖旧的值。
+     * 如果指定的值为 null，则从符号表中删除指定的键。
+     *
+     * @param key 键
+     * @param val 值
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public void put(Key key, Value val) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to put() is null");
+        }
+        if (val == null) {
+            delete(key);
+            return;
+        }
+        root = put(root, key, val);
+        setRed(root, false);
+    }
+
+    private long put(long h, Key key, Value val) {
+        if (h == NULL) {
+            return allocate(key, val);
+        }
+        int cmp = key.compareTo(key(h));
+        if (cmp < 0) {
+            setLeft(h, put(left(h), key, val));
+        } else if (cmp > 0) {
+            setRight(h, put(right(h), key, val));
+        } else {
+            setVal(h, val);
+        }
+
+        if (isRed(right(h)) && !isRed(left(h))) {
+            h = rotateLeft(h);
+        }
+        if (isRed(left(h)) && isRed(left(left(h)))) {
+            h = rotateRight(h);
+        }
+        if (isRed(left(h)) && isRed(right(h))) {
+            flipColors(h);
+        }
+        setSize(h, size(left(h)) + size(right(h)) + 1);
+        return h;
+    }
+
+    /**
+     * 删除最小的键。
+     *
+     * @throws NoSuchElementException 如果符号表为空
+     */
+    public void deleteMin() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("BST underflow");
+        }
+        if (!isRed(left(root)) && !isRed(right(root))) {
+            setRed(root, true);
+        }
+        root = deleteMin(root);
+        if (!isEmpty()) {
+            setRed(root, false);
+        }
+    }
+
+    private long deleteMin(long h) {
+        if (left(h) == NULL) {
+            free(h);
+            return NULL;
+        }
+        if (!isRed(left(h)) && !isRed(left(left(h)))) {
+            h = moveRedLeft(h);
+        }
+        setLeft(h, deleteMin(left(h)));
+        return balance(h);
+    }
+
+    /**
+     * 删除最大的键。
+     *
+     * @throws NoSuchElementException 如果符号表为空
+     */
+    public void deleteMax() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("BST underflow");
+        }
+        if (!isRed(left(root)) && !isRed(right(root))) {
+            setRed(root, true);
+        }
+        root = deleteMax(root);
+        if (!isEmpty()) {
+            setRed(root, false);
+        }
+    }
+
+    private long deleteMax(long h) {
+        if (isRed(left(h))) {
+            h = rotateRight(h);
+        }
+        if (right(h) == NULL) {
+            free(h);
+            return NULL;
+        }
+        if (!isRed(right(h)) && !isRed(left(right(h)))) {
+            h = moveRedRight(h);
+        }
+        setRight(h, deleteMax(right(h)));
+        return balance(h);
+    }
+
+    /**
+     * 从符号表中删除指定的键（如果存在）。
+     *
+     * @param key 键
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public void delete(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to delete() is null");
+        }
+        if (!contains(key)) {
+            return;
+        }
+        if (!isRed(left(root)) && !isRed(right(root))) {
+            setRed(root, true);
+        }
+        root = delete(root, key);
+        if (!isEmpty()) {
+            setRed(root, false);
+        }
+    }
+
+    private long delete(long h, Key key) {
+        if (key.compareTo(key(h)) < 0) {
+            if (!isRed(left(h)) && !isRed(left(left(h)))) {
+                h = moveRedLeft(h);
+            }
+            setLeft(h, delete(left(h), key));
+        } else {
+            if (isRed(left(h))) {
+                h = rotateRight(h);
+            }
+            if (key.compareTo(key(h)) == 0 && right(h) == NULL) {
+                free(h);
+                return NULL;
+            }
+            if (!isRed(right(h)) && !isRed(left(right(h)))) {
+                h = moveRedRight(h);
+            }
+            if (key.compareTo(key(h)) == 0) {
+                long x = min(right(h));
+                setKey(h, key(x));
+                setVal(h, val(x));
+                setRight(h, deleteMin(right(h)));
+            } else {
+                setRight(h, delete(right(h), key));
+            }
+        }
+        return balance(h);
+    }
+
+    /***************************************************************************
+     *  红黑树辅助方法。
+     ***************************************************************************/
+
+    private long rotateRight(long h) {
+        long x = left(h);
+        setLeft(h, right(x));
+        setRight(x, h);
+        setRed(x, isRed(h));
+        setRed(h, true);
+        setSize(x, size(h));
+        setSize(h, size(left(h)) + size(right(h)) + 1);
+        return x;
+    }
+
+    private long rotateLeft(long h) {
+        long x = right(h);
+        setRight(h, left(x));
+        setLeft(x, h);
+        setRed(x, isRed(h));
+        setRed(h, true);
+        setSize(x, size(h));
+        setSize(h, size(left(h)) + size(right(h)) + 1);
+        return x;
+    }
+
+    private void flipColors(long h) {
+        setRed(h, !isRed(h));
+        setRed(left(h), !isRed(left(h)));
+        setRed(right(h), !isRed(right(h)));
+    }
+
+    private long moveRedLeft(long h) {
+        flipColors(h);
+        if (isRed(left(right(h)))) {
+            setRight(h, rotateRight(right(h)));
+            h = rotateLeft(h);
+            flipColors(h);
+        }
+        return h;
+    }
+
+    private long moveRedRight(long h) {
+        flipColors(h);
+        if (isRed(left(left(h)))) {
+            h = rotateRight(h);
+            flipColors(h);
+        }
+        return h;
+    }
+
+    private long balance(long h) {
+        if (isRed(right(h))) {
+            h = rotateLeft(h);
+        }
+        if (isRed(left(h)) && isRed(left(left(h)))) {
+            h = rotateRight(h);
+        }
+        if (isRed(left(h)) && isRed(right(h))) {
+            flipColors(h);
+        }
+        setSize(h, size(left(h)) + size(right(h)) + 1);
+        return h;
+    }
+
+    /***************************************************************************
+     *  有序符号表方法。
+     ***************************************************************************/
+
+    private long min(long x) {
+        while (left(x) != NULL) {
+            x = left(x);
+        }
+        return x;
+    }
+
+    private long max(long x) {
+        while (right(x) != NULL) {
+            x = right(x);
+        }
+        return x;
+    }
+
+    /**
+     * 返回最小的键。
+     *
+     * @return 最小的键
+     * @throws NoSuchElementException 如果符号表为空
+     */
+    public Key min() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("called min() with empty symbol table");
+        }
+        return key(min(root));
+    }
+
+    /**
+     * 返回最大的键。
+     *
+     * @return 最大的键
+     * @throws NoSuchElementException 如果符号表为空
+     */
+    public Key max() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("called max() with empty symbol table");
+        }
+        return key(max(root));
+    }
+
+    /**
+     * 返回小于等于给定键的最大键。
+     *
+     * @param key 键
+     * @return 小于等于 key 的最大键；如果不存在则返回 null
+     * @throws NoSuchElementException   如果符号表为空
+     * @throws IllegalArgumentException 如果 key 为 null
+     */
+    public Key floor(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to floor() is null");
+        }
+        if (isEmpty()) {
+            throw new NoSuchElementException("called floor() with empty symbol table");
+        }
+        Key best = null;
+        long x = root;
+        while (x != NULL) {
+            Key k = key(x);
+            int cmp = key.compareTo(k);
+            if (cmp == 0) {
+                return k;
+            } else if (cmp < 0) {
+                x = left(x);
+            } else {
+                best = k;
+                x = right(x);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 返回大于等于给定键的最小键。
+     *
+     * @param key 键
+     * @return 大于等于 key 的最小键；如果不存在则返回 null
+     * @throws NoSuchElementException   如果符号表为空
+     * @throws IllegalArgumentException 如果 key 为 null
+     */
+    public Key ceiling(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to ceiling() is null");
+        }
+        if (isEmpty()) {
+            throw new NoSuchElementException("called ceiling() with empty symbol table");
+        }
+        Key best = null;
+        long x = root;
+        while (x != NULL) {
+            Key k = key(x);
+            int cmp = key.compareTo(k);
+            if (cmp == 0) {
+                return k;
+            } else if (cmp > 0) {
+                x = right(x);
+            } else {
+                best = k;
+                x = left(x);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 返回严格小于给定键的键的数量。
+     *
+     * @param key 键
+     * @return 严格小于 key 的键的数量
+     * @throws IllegalArgumentException 如果 key 为 null
+     */
+    public int rank(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to rank() is null");
+        }
+        int r = 0;
+        long x = root;
+        while (x != NULL) {
+            int cmp = key.compareTo(key(x));
+            if (cmp < 0) {
+                x = left(x);
+            } else if (cmp > 0) {
+                r += 1 + size(left(x));
+                x = right(x);
+            } else {
+                return r + size(left(x));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * 返回第 k 小的键。
+     *
+     * @param k 顺序统计量
+     * @return 第 k 小的键
+     * @throws IllegalArgumentException 除非 k 在 0 到 n-1 之间
+     */
+    public Key select(int k) {
+        if (k < 0 || k >= size()) {
+            throw new IllegalArgumentException("called select() with invalid argument: " + k);
+        }
+        long x = root;
+        while (true) {
+            int leftSize = size(left(x));
+            if (k < leftSize) {
+                x = left(x);
+            } else if (k > leftSize) {
+                k -= leftSize + 1;
+                x = right(x);
+            } else {
+                return key(x);
+            }
+        }
+    }
+
+    /**
+     * 返回区间 [lo, hi] 内的键的数量。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 区间内的键的数量
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public int size(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to size() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to size() is null");
+        }
+        if (lo.compareTo(hi) > 0) {
+            return 0;
+        }
+        if (contains(hi)) {
+            return rank(hi) - rank(lo) + 1;
+        } else {
+            return rank(hi) - rank(lo);
+        }
+    }
+
+    /**
+     * 返回区间 [lo, hi] 内的所有键。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 区间内的所有键
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public Iterable<Key> keys(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to keys() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to keys() is null");
+        }
+        Queue<Key> queue = new LinkedList<>();
+        keys(root, queue, lo, hi);
+        return queue;
+    }
+
+    private void keys(long x, Queue<Key> queue, Key lo, Key hi) {
+        if (x == NULL) {
+            return;
+        }
+        Key k = key(x);
+        int cmplo = lo.compareTo(k);
+        int cmphi = hi.compareTo(k);
+        if (cmplo < 0) {
+            keys(left(x), queue, lo, hi);
+        }
+        if (cmplo <= 0 && cmphi >= 0) {
+            queue.add(k);
+        }
+        if (cmphi > 0) {
+            keys(right(x), queue, lo, hi);
+        }
+    }
+
+    /**
+     * 返回所有的键。
+     *
+     * @return 所有的键
+     */
+    public Iterable<Key> keys() {
+        if (isEmpty()) {
+            return new LinkedList<>();
+        }
+        return keys(min(), max());
+    }
+
+    /***************************************************************************
+     *  缓冲池与持久化。
+     ***************************************************************************/
+
+    /**
+     * 返回缓冲池的命中次数。
+     *
+     * @return 命中次数
+     */
+    public long cacheHits() {
+        return pool.hits();
+    }
+
+    /**
+     * 返回缓冲池的未命中次数，即从文件读入页面的次数。
+     *
+     * @return 未命中次数
+     */
+    public long cacheMisses() {
+        return pool.misses();
+    }
+
+    /**
+     * 返回缓冲池的命中率；还没有访问时返回 0。
+     *
+     * @return 命中率
+     */
+    public double cacheHitRate() {
+        long total = pool.hits() + pool.misses();
+        return total == 0 ? 0 : (double) pool.hits() / total;
+    }
+
+    /**
+     * 返回缓冲池淘汰页面的次数。
+     *
+     * @return 淘汰次数
+     */
+    public long cacheEvictions() {
+        return pool.evictions();
+    }
+
+    /**
+     * 返回写回文件的页面数。
+     *
+     * @return 写回的页面数
+     */
+    public long pageWrites() {
+        return pool.writes();
+    }
+
+    /**
+     * 返回缓冲池能够缓存的页面数。
+     *
+     * @return 缓冲池容量（页）
+     */
+    public int cacheCapacity() {
+        return pool.capacity();
+    }
+
+    /**
+     * 把文件头和所有脏页写回文件，并强制落盘。
+     *
+     * @throws IOException 如果写文件失败
+     */
+    public void flush() throws IOException {
+        try {
+            writeHeader();
+            pool.flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        channel.force(false);
+    }
+
+    /**
+     * 写回所有脏页并关闭文件。
+     *
+     * @throws IOException 如果写文件失败
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
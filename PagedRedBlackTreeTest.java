@@ -0,0 +1,65 @@
+package com.pseudoyu.tree.rb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PagedRedBlackTreeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void matchesInMemoryTreeWithSmallPool() throws IOException {
+        Path file = folder.newFile("tree.db").toPath();
+        TreeMap<Long, Long> expected = new TreeMap<>();
+        // 8 个 1KB 的页面，远小于数据量，迫使缓冲池不断淘汰和写回
+        try (PagedRedBlackTree<Long, Long> tree = new PagedRedBlackTree<>(file, PageCodec.LONG, PageCodec.LONG, 1024, 8 * 1024)) {
+            for (long i = 0; i < 20000; i++) {
+                long key = (i * 7919) % 10007;
+                tree.put(key, i);
+                expected.put(key, i);
+                if (i % 3 == 0) {
+                    tree.delete(key / 2);
+                    expected.remove(key / 2);
+                }
+            }
+            assertEquals(expected.size(), tree.size());
+            assertEquals(expected.floorKey(5000L), tree.floor(5000L));
+            assertEquals(expected.ceilingKey(5000L), tree.ceiling(5000L));
+            assertEquals(expected.headMap(7000L).size(), tree.rank(7000L));
+            assertEquals(expected.subMap(2000L, true, 6000L, true).size(), tree.size(2000L, 6000L));
+            for (int k = 0; k < expected.size(); k += 97) {
+                assertEquals(Long.valueOf(k), Long.valueOf(tree.rank(tree.select(k))));
+            }
+            assertEquals(expected.firstKey(), tree.select(0));
+            assertTrue(tree.cacheMisses() > 0);
+            assertTrue(tree.cacheEvictions() > 0);
+        }
+
+        try (PagedRedBlackTree<Long, Long> tree = new PagedRedBlackTree<>(file, PageCodec.LONG, PageCodec.LONG, 1024, 64 * 1024)) {
+            assertEquals(expected.size(), tree.size());
+            for (long key = 0; key < 10007; key++) {
+                assertEquals(expected.get(key), tree.get(key));
+            }
+            int n = 0;
+            for (Long key : tree.keys(100L, 900L)) {
+                assertEquals(expected.ceilingKey(key), key);
+                n++;
+            }
+            assertEquals(expected.subMap(100L, true, 900L, true).size(), n);
+            tree.deleteMin();
+            tree.deleteMax();
+            assertNull(tree.get(expected.firstKey()));
+            assertNull(tree.get(expected.lastKey()));
+        }
+    }
+}
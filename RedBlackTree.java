@@ -1,9 +1,21 @@
 package com.pseudoyu.tree.rb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToDoubleBiFunction;
 
 // 定义红黑树类
 public class RedBlackTree<Key extends Comparable<Key>, Value> {
@@ -18,11 +30,105 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
     // 使用 Node 类型，Node 是红黑树中的节点类型
     private Node root;      // 根节点
 
+    // 是否为多重集模式：允许重复键，节点记录键的重数
+    private final boolean multiset;
+
+    // 树中的节点数量，即不同键的数量
+    private int nodes;
+
+    // 是否维护子树内容哈希
+    private boolean hashing;
+
+    // 是否为延迟删除模式：删除只把节点标记为墓碑，由压缩统一移除
+    private boolean lazyDelete;
+
+    // 墓碑节点数量占节点总数的比例超过该阈值时才需要压缩
+    private double compactThreshold;
+
+    // 墓碑节点的数量
+    private int tombstones;
+
+    // 后台压缩线程，未启动时为 null
+    private ScheduledExecutorService compactor;
+
+    // 抽样检查时完整检查的子树的最大节点数
+    private static final int SAMPLE_SUBTREE_LIMIT = 1024;
+
+    // 每次修改后执行抽样检查的概率，0 表示关闭
+    private double checkSampleRate;
+
+    // compute 系列方法在一次下降中记录的旧值和新值
+    private Value previous;
+    private Value current;
+
+    // 按区间删除时分裂得到的左右两部分及其黑高，以及最近一次合并结果的黑高
+    private Node splitLeft;
+    private Node splitRight;
+    private int splitLeftHeight;
+    private int splitRightHeight;
+    private int joinedHeight;
+
+    // 注册的二级索引，没有索引时为 null
+    private List<SecondaryIndex<?, Key, Value>> indexes;
+
+    // 变更流，未开启时为 null
+    private ChangeStream<Key, Value> changeStream;
+
+    // 直接映射的热点键缓存：按键的哈希值定位槽位，槽位中保存最近一次查到的节点；未开启时为 null
+    private Object[] hotCache;
+
+    // 热点键缓存的命中与未命中次数
+    private long hotHits;
+    private long hotMisses;
+
+    // 自适应模式下累计读取多少次之后 restructureIfNeeded 才重建，0 表示关闭
+    private int adaptivePeriod;
+
+    // 上一次重建以来的读取次数
+    private int adaptiveReads;
+
+    // 普通节点的浅大小：外部类引用、键、值、左右孩子 5 个引用，加上 color、deleted、size
+    private static final long NODE_BYTES = MemoryStats.shallowSize(5, 1 + 1 + 4);
+
+    // 扩展节点的浅大小：在普通节点之外还有 count、hash、hits
+    private static final long AUGMENTED_NODE_BYTES = MemoryStats.shallowSize(5, 1 + 1 + 4 + 4 + 8 + 4);
+
+    // 校准每个键值对的平均大小时抽样的节点数
+    private static final int CALIBRATION_SAMPLES = 32;
+
+    // 内存软上限（字节），0 表示不限制
+    private long memoryLimit;
+
+    // 达到内存上限时插入新键的处理方式
+    private MemoryPolicy memoryPolicy;
+
+    // 节点是否为 AugmentedNode：多重集、内容哈希或自适应模式需要的字段只放在扩展节点中，
+    // 不使用这些功能的树每个节点少占 8 到 16 字节。开启后不再变回普通节点
+    private boolean augmented;
+
+    // 估计的每个节点连同键和值的字节数，以及下一次重新校准时的节点数
+    private long entryBytes;
+    private int calibrateAt;
+
     /**
      * 初始化一个空的符号表（红黑树）。
      */
     public RedBlackTree() {
-        // 构造函数体为空，因为根节点默认为 null
+        this(false);
+    }
+
+    /**
+     * 初始化一个空的符号表（红黑树），并指定是否启用多重集模式。
+     * <p>
+     * 多重集模式下，重复插入同一个键只会增加该节点的重数（并以新值覆盖旧值），不会分配新节点；
+     * 子树计数 {@code size} 统计的是所有出现次数，因此 {@link #rank}、{@link #select}
+     * 与 {@link #size(Comparable, Comparable)} 都会把重复键计算在内。
+     *
+     * @param multiset 如果为 true，则启用多重集模式
+     */
+    public RedBlackTree(boolean multiset) {
+        this.multiset = multiset;
+        this.augmented = multiset;
     }
 
     /**
@@ -78,7 +184,29 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
     }
 
     /**
-     * 返回此符号表中的键值对数量。
+     * 根据左右子树重新计算节点 h 的子树计数，启用内容哈希时同时重新计算子树哈希。
+     *
+     * @param h 要更新的节点
+     */
+    private void update(Node h) {
+        h.size = size(h.left) + size(h.right) + weight(h);
+        if (hashing) {
+            ((AugmentedNode<?, ?>) h).hash = hash(h.left) + hash(h.right) + weight(h) * entryHash(h);
+        }
+    }
+
+    /**
+     * 返回节点自身在子树计数中所占的份额：墓碑节点为 0，否则为键的重数。
+     *
+     * @param x 节点
+     * @return 节点的计数份额
+     */
+    private int weight(Node x) {
+        return x.deleted ? 0 : x.getCount();
+    }
+
+    /**
+     * 返回此符号表中的键值对数量。多重集模式下重复的键按出现次数计算。
      *
      * @return 此符号表中的键值对数量
      */
@@ -87,14 +215,32 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         return size(root);
     }
 
+    /**
+     * 返回此符号表中不同键的数量。非多重集模式下与 {@link #size()} 相同。
+     *
+     * @return 不同键的数量
+     */
+    public int distinctSize() {
+        return nodes - tombstones;
+    }
+
+    /**
+     * 判断此符号表是否为多重集模式。
+     *
+     * @return 如果允许重复键则返回 true
+     */
+    public boolean isMultiset() {
+        return multiset;
+    }
+
     /**
      * 判断此符号表是否为空。
      *
      * @return 如果此符号表为空，则返回 true；否则返回 false
      */
     public boolean isEmpty() {
-        // 检查根节点是否为 null
-        return root == null;
+        // 延迟删除模式下根节点可能只剩墓碑，因此按计数判断
+        return size(root) == 0;
     }
 
     /***************************************************************************
@@ -113,8 +259,41 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         if (key == null) {
             throw new IllegalArgumentException("argument to get() is null");
         }
-        // 调用私有方法 get 来获取值
-        return get(root, key);
+        if (hotCache == null && adaptivePeriod == 0) {
+            // 调用私有方法 get 来获取值
+            return get(root, key);
+        }
+        Node x = hotCache != null ? cachedFind(key) : find(key);
+        if (x == null) {
+            return null;
+        }
+        if (adaptivePeriod > 0) {
+            touch(x);
+        }
+        return x.val;
+    }
+
+    /**
+     * 先探查热点键缓存，未命中时再从根节点查找，并把找到的节点放入缓存。
+     * 缓存的节点只有在键仍然相等且不是墓碑时才有效，因此命中只需要一次比较。
+     *
+     * @param key 要查询的键
+     * @return 包含该键的节点；如果不存在则返回 null
+     */
+    @SuppressWarnings("unchecked")
+    private Node cachedFind(Key key) {
+        int slot = slot(key);
+        Node x = (Node) hotCache[slot];
+        if (x != null && !x.deleted && key.compareTo(x.key) == 0) {
+            hotHits++;
+            return x;
+        }
+        hotMisses++;
+        x = find(key);
+        if (x != null) {
+            hotCache[slot] = x;
+        }
+        return x;
     }
 
     /**
@@ -134,7 +313,7 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
             } else if (cmp > 0) { // 如果键大于当前节点的键，则移动到右子树
                 x = x.right;
             } else {
-                return x.val; // 如果键等于当前节点的键，则返回该节点的值
+                return x.deleted ? null : x.val; // 如果键等于当前节点的键，则返回该节点的值（墓碑视为不存在）
             }
         }
 
@@ -153,12 +332,49 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         return get(key) != null; // 调用 get 方法，并检查返回值是否为 null
     }
 
+    /**
+     * 返回给定键在符号表中出现的次数。非多重集模式下结果只会是 0 或 1。
+     *
+     * @param key 要查询的键
+     * @return 键的重数；如果键不存在则返回 0
+     * @throws IllegalArgumentException 如果给定的键为 null
+     */
+    public int count(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to count() is null");
+        }
+        Node x = find(key);
+        return x == null ? 0 : x.getCount();
+    }
+
+    /**
+     * 查找包含给定键的节点，墓碑节点视为不存在。
+     *
+     * @param key 要查询的键
+     * @return 包含该键的节点；如果不存在则返回 null
+     */
+    private Node find(Key key) {
+        Node x = root;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if (cmp < 0) {
+                x = x.left;
+            } else if (cmp > 0) {
+                x = x.right;
+            } else {
+                return x.deleted ? null : x;
+            }
+        }
+        return null;
+    }
+
     /***************************************************************************
      *  红黑树插入。
      ***************************************************************************/
 
     /**
-     * 将指定的键值对插入到符号表中。如果符号表已经包含指定的键，则用新的值覆盖旧的值。
+     * 将指定的键值对插入到符号表中。如果符号表已经包含指定的键，则用新的值覆盖旧的值；
+     * 多重集模式下还会把该键的重数加一。
      * 如果指定的值为 null，则从符号表中删除指定的键（及其关联的值）。
      *
      * @param key 键
@@ -177,10 +393,17 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
             return;
         }
 
-        // 递归插入键值对
+        if (overLimit(key)) {
+            makeRoom();
+        }
+        // 递归插入键值对，被覆盖的旧值记录在 previous 中；先清除上一次调用可能因异常而遗留的值
+        previous = null;
+        current = null;
         root = put(root, key, val);
         // 将根节点的颜色设为黑色
         root.color = BLACK;
+        changed(key, takePrevious(), val);
+        sampleCheck();
     }
 
     /**
@@ -194,7 +417,7 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
     private Node put(Node h, Key key, Value val) {
         // 如果到达空节点，则创建一个新节点
         if (h == null) {
-            return new Node(key, val, RED, 1);
+            return newNode(key, val);
         }
 
         // 比较键与当前节点的键
@@ -203,8 +426,14 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
             h.left = put(h.left, key, val);
         } else if (cmp > 0) {// 如果键大于当前节点的键，则递归地在右子树中插入
             h.right = put(h.right, key, val);
+        } else if (h.deleted) {
+            revive(h, val);// 如果命中墓碑节点，则直接复用它
         } else {
+            previous = h.val;
             h.val = val;// 如果键等于当前节点的键，则更新该节点的值
+            if (multiset) {
+                h.setCount(h.getCount() + 1);// 多重集模式下只增加重数，不分配新节点
+            }
         }
 
         // 维护红黑树的性质
@@ -226,18 +455,404 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         }
 
         // 更新节点的子树计数
-        h.size = size(h.left) + size(h.right) + 1;
+        update(h);
 
         // 返回更新后的节点
         return h;
     }
 
+    /**
+     * 按顺序批量插入键值对，已存在的键覆盖旧值。键必须严格递增、值不能为 null，由调用方保证。
+     * <p>
+     * 对于普通的树（没有多重集、二级索引、变更流和内存上限），如果批量相对于现有的节点数足够大，
+     * 就把现有的存活节点与新键按顺序归并，再用 {@link #build(Object[], int, int)} 在线性时间内重建，
+     * 总代价为 O(n + m)，墓碑也随之移除；否则逐个调用 {@link #put}。
+     *
+     * @param keys 严格递增的键
+     * @param vals 与键一一对应的值
+     */
+    void putAllSorted(Key[] keys, Value[] vals) {
+        int m = keys.length;
+        boolean linear = !multiset && indexes == null && changeStream == null && memoryLimit == 0
+                && (long) m * (32 - Integer.numberOfLeadingZeros(nodes)) >= nodes;
+        if (!linear) {
+            for (int j = 0; j < m; j++) {
+                put(keys[j], vals[j]);
+            }
+            return;
+        }
+        Object[] old = liveNodes();
+        Object[] merged = new Object[old.length + m];
+        int i = 0, j = 0, n = 0;
+        while (j < m) {
+            @SuppressWarnings("unchecked")
+            Node x = i < old.length ? (Node) old[i] : null;
+            int cmp = x == null ? -1 : keys[j].compareTo(x.key);
+            if (cmp < 0) {
+                merged[n++] = createNode(keys[j], vals[j]);
+                j++;
+            } else {
+                if (cmp == 0) {
+                    x.val = vals[j++];
+                }
+                merged[n++] = x;
+                i++;
+            }
+        }
+        while (i < old.length) {
+            merged[n++] = old[i++];
+        }
+        root = build(merged, 0, n);
+        nodes = n;
+        tombstones = 0;
+        if (hotCache != null) {
+            Arrays.fill(hotCache, null);
+        }
+        sampleCheck();
+    }
+
+    /***************************************************************************
+     *  单次下降的读-改-写操作。
+     ***************************************************************************/
+
+    /**
+     * 返回与给定键关联的值；如果键不存在，则返回默认值。
+     *
+     * @param key          要查询的键
+     * @param defaultValue 键不存在时返回的值
+     * @return 与该键关联的值或默认值
+     * @throws IllegalArgumentException 如果给定的键为 null
+     */
+    public Value getOrDefault(Key key, Value defaultValue) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to getOrDefault() is null");
+        }
+        Node x = find(key);
+        return x == null ? defaultValue : x.val;
+    }
+
+    /**
+     * 根据键和当前值（键不存在时为 null）计算新值。新值为 null 时删除该键（多重集模式下删除所有出现），
+     * 否则插入或原地更新。整个过程只下降一次，只有插入或删除节点时才调整树结构；
+     * 原地更新值不会改变颜色和子树计数。
+     *
+     * @param key 键
+     * @param fn  计算新值的函数
+     * @return 新值；如果键被删除或仍不存在则返回 null
+     * @throws IllegalArgumentException 如果键或函数为 null
+     */
+    public Value compute(Key key, BiFunction<? super Key, ? super Value, ? extends Value> fn) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to compute() is null");
+        }
+        if (fn == null) {
+            throw new IllegalArgumentException("second argument to compute() is null");
+        }
+        upsert(key, fn);
+        return takeCurrent();
+    }
+
+    /**
+     * 如果键不存在，则用函数计算出的值插入该键；函数返回 null 时不插入。
+     *
+     * @param key 键
+     * @param fn  计算值的函数
+     * @return 当前（已有的或新插入的）值；如果没有插入则返回 null
+     * @throws IllegalArgumentException 如果键或函数为 null
+     */
+    public Value computeIfAbsent(Key key, Function<? super Key, ? extends Value> fn) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to computeIfAbsent() is null");
+        }
+        if (fn == null) {
+            throw new IllegalArgumentException("second argument to computeIfAbsent() is null");
+        }
+        upsert(key, (k, old) -> old != null ? old : fn.apply(k));
+        return takeCurrent();
+    }
+
+    /**
+     * 如果键存在，则根据键和当前值计算新值；新值为 null 时删除该键。
+     *
+     * @param key 键
+     * @param fn  计算新值的函数
+     * @return 新值；如果键不存在或被删除则返回 null
+     * @throws IllegalArgumentException 如果键或函数为 null
+     */
+    public Value computeIfPresent(Key key, BiFunction<? super Key, ? super Value, ? extends Value> fn) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to computeIfPresent() is null");
+        }
+        if (fn == null) {
+            throw new IllegalArgumentException("second argument to computeIfPresent() is null");
+        }
+        upsert(key, (k, old) -> old == null ? null : fn.apply(k, old));
+        return takeCurrent();
+    }
+
+    /**
+     * 如果键不存在，则插入给定的值；否则用函数合并当前值和给定的值，合并结果为 null 时删除该键。
+     *
+     * @param key 键
+     * @param val 要插入或合并的值
+     * @param fn  合并函数
+     * @return 新值；如果键被删除则返回 null
+     * @throws IllegalArgumentException 如果任一参数为 null
+     */
+    public Value merge(Key key, Value val, BiFunction<? super Value, ? super Value, ? extends Value> fn) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to merge() is null");
+        }
+        if (val == null) {
+            throw new IllegalArgumentException("second argument to merge() is null");
+        }
+        if (fn == null) {
+            throw new IllegalArgumentException("third argument to merge() is null");
+        }
+        upsert(key, (k, old) -> old == null ? val : fn.apply(old, val));
+        return takeCurrent();
+    }
+
+    /**
+     * 如果键不存在，则插入给定的键值对。
+     *
+     * @param key 键
+     * @param val 值
+     * @return 原来的值；如果键原来不存在则返回 null
+     * @throws IllegalArgumentException 如果键或值为 null
+     */
+    public Value putIfAbsent(Key key, Value val) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to putIfAbsent() is null");
+        }
+        if (val == null) {
+            throw new IllegalArgumentException("second argument to putIfAbsent() is null");
+        }
+        upsert(key, (k, old) -> old == null ? val : old);
+        return takePrevious();
+    }
+
+    /**
+     * 如果键存在，则把它的值替换为给定的值。不会改变树的结构。
+     *
+     * @param key 键
+     * @param val 新值
+     * @return 原来的值；如果键不存在则返回 null
+     * @throws IllegalArgumentException 如果键或值为 null
+     */
+    public Value replace(Key key, Value val) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to replace() is null");
+        }
+        if (val == null) {
+            throw new IllegalArgumentException("second argument to replace() is null");
+        }
+        if (hashing) {
+            // 需要沿路径刷新内容哈希
+            upsert(key, (k, old) -> old == null ? null : val);
+            return takePrevious();
+        }
+        Node x = find(key);
+        if (x == null) {
+            return null;
+        }
+        Value old = x.val;
+        x.val = val;
+        changed(key, old, val);
+        return old;
+    }
+
+    /**
+     * 在一次下降中完成查找、插入或原地更新，并把旧值和新值记录在 previous 与 current 中。
+     * 如果新值为 null 而旧值存在，则再执行一次删除（跳过 delete 中的 contains 检查）。
+     * fn 或键的比较抛出异常时树保持不变，previous 与 current 被清除后异常继续向外抛出。
+     *
+     * @param key 键
+     * @param fn  根据键和旧值计算新值的函数
+     */
+    private void upsert(Key key, BiFunction<? super Key, ? super Value, ? extends Value> fn) {
+        previous = null;
+        current = null;
+        try {
+            if (overLimit(key)) {
+                // 键不存在：先算出新值，只有确实要插入时才按策略拒绝或逐出
+                Value v = fn.apply(key, null);
+                if (v == null) {
+                    return;
+                }
+                makeRoom();
+                fn = (k, old) -> v;
+            }
+            root = upsert(root, key, fn);
+            if (previous != null && current == null) {
+                if (lazyDelete) {
+                    bury(key, true);
+                } else {
+                    if (!isRed(root.left) && !isRed(root.right)) {
+                        root.color = RED;
+                    }
+                    uncache(key);
+                    root = delete(root, key);
+                    nodes--;
+                }
+            }
+            if (root != null) {
+                root.color = BLACK;
+            }
+            if (previous != current) {
+                changed(key, previous, current);
+            }
+            sampleCheck();
+        } catch (Throwable e) {
+            previous = null;
+            current = null;
+            throw e;
+        }
+    }
+
+    /**
+     * 递归地在以 h 为根的子树中执行 upsert。只有插入了新节点时才在返回路径上调整结构。
+     *
+     * @param h   当前节点
+     * @param key 键
+     * @param fn  根据键和旧值计算新值的函数
+     * @return 操作后的子树根节点
+     */
+    private Node upsert(Node h, Key key, BiFunction<? super Key, ? super Value, ? extends Value> fn) {
+        if (h == null) {
+            current = fn.apply(key, null);
+            if (current == null) {
+                return null;
+            }
+            return newNode(key, current);
+        }
+
+        int cmp = key.compareTo(h.key);
+        if (cmp < 0) {
+            h.left = upsert(h.left, key, fn);
+        } else if (cmp > 0) {
+            h.right = upsert(h.right, key, fn);
+        } else {
+            previous = h.deleted ? null : h.val;
+            current = fn.apply(h.key, previous);
+            if (current != null && h.deleted) {
+                revive(h, current);  // 复用墓碑节点，计数在返回路径上更新
+            } else if (current != null) {
+                h.val = current;  // 原地更新，不改变颜色和子树计数
+                if (hashing) {
+                    update(h);
+                }
+            }
+            return h;
+        }
+
+        // 没有插入新节点时，路径上的结构和计数都没有变化，只需要刷新内容哈希
+        if (previous != null || current == null) {
+            if (hashing) {
+                update(h);
+            }
+            return h;
+        }
+
+        if (isRed(h.right) && !isRed(h.left)) {
+            h = rotateLeft(h);
+        }
+        if (isRed(h.left) && isRed(h.left.left)) {
+            h = rotateRight(h);
+        }
+        if (isRed(h.left) && isRed(h.right)) {
+            flipColors(h);
+        }
+        update(h);
+        return h;
+    }
+
+    // 取出 upsert 记录的新值，并清除对它的引用
+    private Value takeCurrent() {
+        Value v = current;
+        previous = null;
+        current = null;
+        return v;
+    }
+
+    // 取出 upsert 记录的旧值，并清除对它的引用
+    private Value takePrevious() {
+        Value v = previous;
+        previous = null;
+        current = null;
+        return v;
+    }
+
+    /**
+     * 创建一个新的红色叶子节点，并初始化它的子树计数和内容哈希。
+     *
+     * @param key 键
+     * @param val 值
+     * @return 新节点
+     */
+    private Node newNode(Key key, Value val) {
+        Node x = createNode(key, val);
+        nodes++;
+        if (hashing) {
+            update(x);
+        }
+        return x;
+    }
+
+    // 按树的模式创建普通节点或扩展节点，不计入节点数
+    private Node createNode(Key key, Value val) {
+        return augmented ? new AugmentedNode<>(this, key, val) : new Node(key, val, RED, 1);
+    }
+
+    /**
+     * 把所有普通节点换成扩展节点，保持树的形状不变。开启需要额外字段的功能时调用，代价为 O(n)；
+     * 节点对象被替换，因此热点键缓存随之清空。
+     */
+    private void augment() {
+        if (augmented) {
+            return;
+        }
+        augmented = true;
+        root = augment(root);
+        if (hotCache != null) {
+            Arrays.fill(hotCache, null);
+        }
+    }
+
+    private Node augment(Node x) {
+        if (x == null) {
+            return null;
+        }
+        Node y = new AugmentedNode<>(this, x.key, x.val);
+        y.color = x.color;
+        y.size = x.size;
+        y.deleted = x.deleted;
+        y.left = augment(x.left);
+        y.right = augment(x.right);
+        return y;
+    }
+
+    /**
+     * 让墓碑节点重新保存一个键值对。调用方负责在返回路径上更新子树计数。
+     *
+     * @param x   墓碑节点
+     * @param val 新值
+     */
+    private void revive(Node x, Value val) {
+        x.deleted = false;
+        x.setCount(1);
+        x.val = val;
+        tombstones--;
+        update(x);
+    }
+
     /***************************************************************************
      *  Red-black tree deletion.
      ***************************************************************************/
 
     /**
      * Removes the smallest key and associated value from the symbol table.
+     * In multiset mode only one occurrence of the smallest key is removed.
      *
      * @throws NoSuchElementException if the symbol table is empty
      */
@@ -245,6 +860,16 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         if (isEmpty()) {
             throw new NoSuchElementException("BST underflow");
         }
+        Node x = tombstones > 0 ? find(min()) : min(root);
+        if (x.getCount() > 1 || lazyDelete) {
+            Key key = x.key;
+            changed(key, bury(key, false), null);
+            sampleCheck();
+            return;
+        }
+        Key key = x.key;
+        Value val = x.val;
+        uncache(key);
 
         // if both children of root are black, set root to red
         if (!isRed(root.left) && !isRed(root.right)) {
@@ -252,10 +877,12 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         }
 
         root = deleteMin(root);
-        if (!isEmpty()) {
+        nodes--;
+        if (root != null) {
             root.color = BLACK;
         }
-        // assert check();
+        changed(key, val, null);
+        sampleCheck();
     }
 
     // delete the key-value pair with the minimum key rooted at h
@@ -274,6 +901,7 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
 
     /**
      * Removes the largest key and associated value from the symbol table.
+     * In multiset mode only one occurrence of the largest key is removed.
      *
      * @throws NoSuchElementException if the symbol table is empty
      */
@@ -281,6 +909,16 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         if (isEmpty()) {
             throw new NoSuchElementException("BST underflow");
         }
+        Node x = tombstones > 0 ? find(max()) : max(root);
+        if (x.getCount() > 1 || lazyDelete) {
+            Key key = x.key;
+            changed(key, bury(key, false), null);
+            sampleCheck();
+            return;
+        }
+        Key key = x.key;
+        Value val = x.val;
+        uncache(key);
 
         // if both children of root are black, set root to red
         if (!isRed(root.left) && !isRed(root.right)) {
@@ -288,10 +926,12 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         }
 
         root = deleteMax(root);
-        if (!isEmpty()) {
+        nodes--;
+        if (root != null) {
             root.color = BLACK;
         }
-        // assert check();
+        changed(key, val, null);
+        sampleCheck();
     }
 
     // delete the key-value pair with the maximum key rooted at h
@@ -315,6 +955,7 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
 
     /**
      * 从符号表中删除指定的键及其关联的值（如果存在）。
+     * 多重集模式下每次调用只删除该键的一次出现，重数减到 0 时才删除节点。
      *
      * @param key 键
      * @throws IllegalArgumentException 如果键为 null
@@ -324,9 +965,18 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
             throw new IllegalArgumentException("argument to delete() is null");
         }
         // 如果键不在符号表中，则直接返回
-        if (!contains(key)) {
+        Node x = find(key);
+        if (x == null) {
+            return;
+        }
+        // 如果键出现了多次，或者处于延迟删除模式，则只修改计数，不需要调整树结构
+        if (x.getCount() > 1 || lazyDelete) {
+            changed(key, bury(key, false), null);
+            sampleCheck();
             return;
         }
+        Value val = x.val;
+        uncache(key);
 
         // 如果根节点的两个孩子都是黑色，则将根节点设为红色
         if (!isRed(root.left) && !isRed(root.right)) {
@@ -335,10 +985,13 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
 
         // 递归删除键
         root = delete(root, key);
+        nodes--;
         // 如果树非空，则将根节点的颜色设为黑色
-        if (!isEmpty()) {
+        if (root != null) {
             root.color = BLACK;
         }
+        changed(key, val, null);
+        sampleCheck();
     }
 
     /**
@@ -369,9 +1022,13 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
                 h = moveRedRight(h);
             }
             if (key.compareTo(h.key) == 0) {
+                // 后继的键值对搬到 h 中，原来的后继节点随后被移除，缓存中指向它的引用必须失效
                 Node x = min(h.right);
+                uncache(x.key);
                 h.key = x.key;
                 h.val = x.val;
+                h.setCount(x.getCount());
+                h.deleted = x.deleted;
                 // h.val = get(h.right, min(h.right).key);
                 // h.key = min(h.right).key;
                 h.right = deleteMin(h.right);
@@ -382,504 +1039,2268 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         return balance(h);
     }
 
+    /**
+     * 不调整树结构地删除给定键：重数大于 1 且 all 为 false 时把重数减一，否则把节点标记为墓碑，
+     * 并更新查找路径上的子树计数和内容哈希。调用前必须确认该键存在且不是墓碑。
+     *
+     * @param key 要删除的键
+     * @param all 是否删除该键的所有出现
+     * @return 节点被标记为墓碑时返回它原来的值，否则返回 null
+     */
+    private Value bury(Key key, boolean all) {
+        Node target = find(key);
+        int removed = all ? target.getCount() : 1;
+        long h = hashing ? removed * entryHash(target) : 0;
+        Node x = root;
+        while (x != null) {
+            x.size -= removed;
+            if (hashing) {
+                ((AugmentedNode<?, ?>) x).hash -= h;
+            }
+            int cmp = key.compareTo(x.key);
+            if (cmp < 0) {
+                x = x.left;
+            } else if (cmp > 0) {
+                x = x.right;
+            } else {
+                if (removed < x.getCount()) {
+                    x.setCount(x.getCount() - removed);
+                    return null;
+                }
+                Value val = x.val;
+                x.deleted = true;
+                x.val = null;  // 释放对值的引用
+                tombstones++;
+                return val;
+            }
+        }
+        return null;
+    }
+
     /***************************************************************************
-     *  Red-black tree helper functions.
+     *  按区间删除：分裂与合并。
      ***************************************************************************/
 
-    // make a left-leaning link lean to the right
-    private Node rotateRight(Node h) {
-        // assert (h != null) && isRed(h.left);
-        Node x = h.left;
-        h.left = x.right;
-        x.right = h;
-        x.color = x.right.color;
-        x.right.color = RED;
-        x.size = h.size;
-        h.size = size(h.left) + size(h.right) + 1;
-        return x;
+    /**
+     * 删除 [lo, hi] 之间的所有键，返回删除的键值对数量（多重集模式下按出现次数计算）。
+     * <p>
+     * 先在 lo 和 hi 处把树分裂成三部分，再把两侧的部分合并起来，整个过程只沿两条路径做
+     * O(log n) 次旋转和合并，与被删除的键数无关。只有在多重集模式、存在墓碑或注册了二级索引时，
+     * 才需要遍历被删除的部分来维护相应的计数和索引。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 删除的键值对数量
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public int deleteRange(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to deleteRange() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to deleteRange() is null");
+        }
+        if (root == null || lo.compareTo(hi) > 0) {
+            return 0;
+        }
+        split(root, blackHeight(root), lo, false);
+        Node below = splitLeft;
+        int belowHeight = splitLeftHeight;
+        split(splitRight, splitRightHeight, hi, true);
+        Node removed = splitLeft;
+        root = concat(below, belowHeight, splitRight);
+        return detach(removed);
     }
 
-    // make a right-leaning link lean to the left
-    private Node rotateLeft(Node h) {
-        // assert (h != null) && isRed(h.right);
-        Node x = h.right;
-        h.right = x.left;
-        x.left = h;
-        x.color = x.left.color;
-        x.left.color = RED;
-        x.size = h.size;
-        h.size = size(h.left) + size(h.right) + 1;
-        return x;
+    /**
+     * 删除所有严格小于给定键的键，返回删除的键值对数量。
+     *
+     * @param key 分界键
+     * @return 删除的键值对数量
+     * @throws IllegalArgumentException 如果 key 为 null
+     */
+    public int deleteBelow(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to deleteBelow() is null");
+        }
+        if (root == null) {
+            return 0;
+        }
+        split(root, blackHeight(root), key, false);
+        Node removed = splitLeft;
+        root = splitRight;
+        return detach(removed);
     }
 
-    // flip the colors of a node and its two children
-    private void flipColors(Node h) {
-        // h must have opposite color of its two children
-        // assert (h != null) && (h.left != null) && (h.right != null);
-        // assert (!isRed(h) &&  isRed(h.left) &&  isRed(h.right))
-        //    || (isRed(h)  && !isRed(h.left) && !isRed(h.right));
-        h.color = !h.color;
-        h.left.color = !h.left.color;
-        h.right.color = !h.right.color;
+    /**
+     * 删除所有严格大于给定键的键，返回删除的键值对数量。
+     *
+     * @param key 分界键
+     * @return 删除的键值对数量
+     * @throws IllegalArgumentException 如果 key 为 null
+     */
+    public int deleteAbove(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to deleteAbove() is null");
+        }
+        if (root == null) {
+            return 0;
+        }
+        split(root, blackHeight(root), key, true);
+        Node removed = splitRight;
+        root = splitLeft;
+        return detach(removed);
     }
 
-    // Assuming that h is red and both h.left and h.left.left
-    // are black, make h.left or one of its children red.
-    private Node moveRedLeft(Node h) {
-        // assert (h != null);
-        // assert isRed(h) && !isRed(h.left) && !isRed(h.left.left);
-
-        flipColors(h);
-        if (isRed(h.right.left)) {
-            h.right = rotateRight(h.right);
-            h = rotateLeft(h);
-            flipColors(h);
+    /**
+     * 维护从树中摘下的子树所涉及的计数、二级索引、变更流和热点键缓存，返回其中的键值对数量。
+     *
+     * @param removed 被摘下的子树
+     * @return 被删除的键值对数量
+     */
+    private int detach(Node removed) {
+        splitLeft = null;
+        splitRight = null;
+        int count = size(removed);
+        if (multiset || tombstones > 0 || indexes != null || changeStream != null) {
+            forget(removed);
+        } else {
+            nodes -= count;
         }
-        return h;
+        if (hotCache != null) {
+            Arrays.fill(hotCache, null);
+        }
+        sampleCheck();
+        return count;
     }
 
-    // Assuming that h is red and both h.right and h.right.left
-    // are black, make h.right or one of its children red.
-    private Node moveRedRight(Node h) {
-        // assert (h != null);
-        // assert isRed(h) && !isRed(h.right) && !isRed(h.right.left);
-        flipColors(h);
-        if (isRed(h.left.left)) {
-            h = rotateRight(h);
-            flipColors(h);
+    // 逐个节点地扣除被删除子树的节点数和墓碑数，并通知二级索引
+    private void forget(Node x) {
+        if (x == null) {
+            return;
         }
-        return h;
+        forget(x.left);
+        nodes--;
+        if (x.deleted) {
+            tombstones--;
+        } else {
+            changed(x.key, x.val, null);
+        }
+        forget(x.right);
     }
 
-    // restore red-black tree invariant
-    private Node balance(Node h) {
-        // assert (h != null);
-
-        if (isRed(h.right)) {
-            h = rotateLeft(h);
-        }
-        if (isRed(h.left) && isRed(h.left.left)) {
-            h = rotateRight(h);
+    /**
+     * 把黑高为 bh 的子树 x 按 key 分裂成两棵根为黑色的红黑树，结果保存在 splitLeft 与 splitRight 中。
+     * inclusive 为 false 时左边保存小于 key 的键，否则保存小于等于 key 的键。
+     * 沿查找路径自底向上逐个合并，合并的代价随黑高的差值累加，总代价为 O(log n)。
+     *
+     * @param x         子树的根，可以为红色
+     * @param bh        子树的黑高（从 x 到空链接路径上的黑色节点数，包括 x 本身）
+     * @param key       分界键
+     * @param inclusive 等于 key 的键是否分到左边
+     */
+    private void split(Node x, int bh, Key key, boolean inclusive) {
+        if (x == null) {
+            splitLeft = null;
+            splitRight = null;
+            splitLeftHeight = 0;
+            splitRightHeight = 0;
+            return;
         }
-        if (isRed(h.left) && isRed(h.right)) {
-            flipColors(h);
+        int childHeight = isRed(x) ? bh : bh - 1;
+        Node left = x.left;
+        Node right = x.right;
+        int cmp = key.compareTo(x.key);
+        if (cmp == 0 && !inclusive) {
+            splitLeft = left;
+            splitLeftHeight = childHeight;
+            if (isRed(left)) {
+                left.color = BLACK;
+                splitLeftHeight++;
+            }
+            splitRight = join(null, 0, x, right, childHeight);
+            splitRightHeight = joinedHeight;
+        } else if (cmp == 0) {
+            splitLeft = join(left, childHeight, x, null, 0);
+            splitLeftHeight = joinedHeight;
+            splitRight = right;  // 右孩子一定是黑色
+            splitRightHeight = childHeight;
+        } else if (cmp < 0) {
+            split(left, childHeight, key, inclusive);
+            splitRight = join(splitRight, splitRightHeight, x, right, childHeight);
+            splitRightHeight = joinedHeight;
+        } else {
+            split(right, childHeight, key, inclusive);
+            splitLeft = join(left, childHeight, x, splitLeft, splitLeftHeight);
+            splitLeftHeight = joinedHeight;
         }
-
-        h.size = size(h.left) + size(h.right) + 1;
-        return h;
     }
 
     /**
-     * Returns the height of the BST (for debugging).
+     * 以节点 m 为中间键合并两棵红黑树，l 中的键都小于 m，r 中的键都大于 m。
+     * 在较高的那棵树中沿右（或左）边界找到黑高相同的黑色子树，用红色的 m 把它与另一棵树连起来，
+     * 再像插入一样沿路径向上调整，代价为 O(|bl - br| + 1)。结果的黑高保存在 joinedHeight 中。
      *
-     * @return the height of the BST (a 1-node tree has height 0)
+     * @param l  左边的树，可以为空，根可以为红色
+     * @param bl l 的黑高
+     * @param m  中间节点，它原来的链接会被覆盖
+     * @param r  右边的树，可以为空，根可以为红色
+     * @param br r 的黑高
+     * @return 合并后根为黑色的树
      */
-    public int height() {
-        return height(root);
+    private Node join(Node l, int bl, Node m, Node r, int br) {
+        if (isRed(l)) {
+            l.color = BLACK;
+            bl++;
+        }
+        if (isRed(r)) {
+            r.color = BLACK;
+            br++;
+        }
+        Node t;
+        if (bl == br) {
+            t = attach(l, m, r);
+        } else if (bl > br) {
+            t = joinRight(l, bl, m, r, br);
+        } else {
+            t = joinLeft(r, br, l, m, bl);
+        }
+        joinedHeight = Math.max(bl, br);
+        if (isRed(t)) {
+            t.color = BLACK;
+            joinedHeight++;
+        }
+        return t;
     }
 
+    // 沿 h 的右边界（右孩子都是黑色）向下，在黑高等于 br 处接上 m 与 r
+    private Node joinRight(Node h, int bh, Node m, Node r, int br) {
+        if (bh == br) {
+            return attach(h, m, r);
+        }
+        h.right = joinRight(h.right, bh - 1, m, r, br);
+        return balance(h);
+    }
 
-    /***************************************************************************
-     *  Utility functions.
-     ***************************************************************************/
+    // 沿 h 的左边界向下，跳过红色节点，在黑高等于 bl 的黑色节点处接上 l 与 m
+    private Node joinLeft(Node h, int bh, Node l, Node m, int bl) {
+        if (bh == bl && !isRed(h)) {
+            return attach(l, m, h);
+        }
+        h.left = joinLeft(h.left, isRed(h) ? bh : bh - 1, l, m, bl);
+        return balance(h);
+    }
 
-    private int height(Node x) {
-        if (x == null) {
-            return -1;
+    // 让 m 成为以 l 和 r 为孩子的红色节点
+    private Node attach(Node l, Node m, Node r) {
+        m.left = l;
+        m.right = r;
+        m.color = RED;
+        update(m);
+        return m;
+    }
+
+    /**
+     * 合并两棵根为黑色的红黑树，l 中的键都小于 r 中的键：先从 r 中摘下最小的节点，再以它为中间键合并。
+     *
+     * @param l  左边的树
+     * @param bl l 的黑高
+     * @param r  右边的树
+     * @return 合并后的树
+     */
+    private Node concat(Node l, int bl, Node r) {
+        if (l == null) {
+            return r;
         }
-        return 1 + Math.max(height(x.left), height(x.right));
+        if (r == null) {
+            return l;
+        }
+        Node m = min(r);
+        if (!isRed(r.left) && !isRed(r.right)) {
+            r.color = RED;
+        }
+        r = deleteMin(r);
+        if (r != null) {
+            r.color = BLACK;
+        }
+        return join(l, bl, m, r, blackHeight(r));
     }
 
     /**
-     * Returns the smallest key in the symbol table.
+     * 把所有大于等于 key 的键从本树中整段摘下，组成一棵新树返回，代价为 O(log n)。
+     * 被摘下的键只是换了一棵树保存，不视为删除，因此只支持没有多重集、墓碑、二级索引和变更流的树。
+     * 供 {@link ShardedRedBlackTree} 在分片之间移动键区间使用。
      *
-     * @return the smallest key in the symbol table
-     * @throws NoSuchElementException if the symbol table is empty
+     * @param key 分界键
+     * @return 保存所有大于等于 key 的键的新树
+     * @throws IllegalStateException 如果本树不是普通的树
      */
-    public Key min() {
-        if (isEmpty()) {
-            throw new NoSuchElementException("called min() with empty symbol table");
+    RedBlackTree<Key, Value> splitOff(Key key) {
+        requirePlain("splitOff");
+        RedBlackTree<Key, Value> tail = new RedBlackTree<>();
+        tail.hashing = hashing;
+        tail.augmented = augmented;
+        if (root == null) {
+            return tail;
+        }
+        split(root, blackHeight(root), key, false);
+        root = splitLeft;
+        tail.root = splitRight;
+        splitLeft = null;
+        splitRight = null;
+        tail.nodes = size(tail.root);
+        nodes -= tail.nodes;
+        if (hotCache != null) {
+            Arrays.fill(hotCache, null);
+        }
+        return tail;
+    }
+
+    /**
+     * 把另一棵树的全部键整段并入本树并清空那棵树，代价为 O(log n)。
+     * 两棵树的键区间不能重叠，other 可以整体位于本树的左边或右边。
+     *
+     * @param other 要并入的树
+     * @throws IllegalArgumentException 如果两棵树的键区间重叠，或者只有一棵树维护内容哈希
+     * @throws IllegalStateException    如果任一棵树不是普通的树
+     */
+    void absorb(RedBlackTree<Key, Value> other) {
+        requirePlain("absorb");
+        other.requirePlain("absorb");
+        if (hashing != other.hashing) {
+            throw new IllegalArgumentException("absorbed tree uses a different hashing mode");
+        }
+        if (other.root == null) {
+            return;
+        }
+        // 两棵树的节点类型必须一致
+        if (augmented) {
+            other.augment();
+        } else if (other.augmented) {
+            augment();
+        }
+        if (root == null) {
+            root = other.root;
+        } else if (max(root).key.compareTo(min(other.root).key) < 0) {
+            root = concat(root, blackHeight(root), other.root);
+        } else if (max(other.root).key.compareTo(min(root).key) < 0) {
+            root = concat(other.root, blackHeight(other.root), root);
+        } else {
+            throw new IllegalArgumentException("key ranges of absorbed tree overlap");
+        }
+        nodes += other.nodes;
+        other.root = null;
+        other.nodes = 0;
+        if (hotCache != null) {
+            Arrays.fill(hotCache, null);
+        }
+        if (other.hotCache != null) {
+            Arrays.fill(other.hotCache, null);
+        }
+    }
+
+    // 整段移动键区间只适用于普通的树：多重集、墓碑、二级索引和变更流都需要逐个节点维护
+    private void requirePlain(String method) {
+        if (multiset || tombstones > 0 || indexes != null || changeStream != null) {
+            throw new IllegalStateException("called " + method + "() on a tree with per-node bookkeeping");
         }
-        return min(root).key;
     }
 
     /***************************************************************************
-     *  Ordered symbol table methods.
+     *  二级索引。
      ***************************************************************************/
 
-    // the smallest key in subtree rooted at x; null if no such key
-    private Node min(Node x) {
-        // assert x != null;
-        if (x.left == null) {
-            return x;
-        } else {
-            return min(x.left);
+    /**
+     * 注册一个按值派生出的键排序的二级索引，并用当前的所有键值对初始化它。
+     * 之后每次修改都会在同一次调用中同步更新索引，更新使用的旧值来自主树的那次下降，
+     * 不需要再查找一次。多重集模式下每个不同的键在索引中只出现一次。
+     *
+     * @param extractor 从值中提取二级键的函数，返回 null 的值不会进入索引
+     * @param <S>       二级键的类型
+     * @return 新的二级索引
+     * @throws IllegalArgumentException 如果 extractor 为 null
+     */
+    public <S extends Comparable<S>> SecondaryIndex<S, Key, Value> addIndex(Function<? super Value, ? extends S> extractor) {
+        if (extractor == null) {
+            throw new IllegalArgumentException("argument to addIndex() is null");
+        }
+        SecondaryIndex<S, Key, Value> index = new SecondaryIndex<>(extractor);
+        fill(root, index);
+        if (indexes == null) {
+            indexes = new ArrayList<>();
         }
+        indexes.add(index);
+        return index;
     }
 
     /**
-     * Returns the largest key in the symbol table.
+     * 注销一个二级索引，之后它不再随主树更新。
      *
-     * @return the largest key in the symbol table
-     * @throws NoSuchElementException if the symbol table is empty
+     * @param index 要注销的索引
+     * @return 如果该索引已注册则返回 true
      */
-    public Key max() {
-        if (isEmpty()) {
-            throw new NoSuchElementException("called max() with empty symbol table");
+    public boolean removeIndex(SecondaryIndex<?, Key, Value> index) {
+        if (indexes == null || !indexes.remove(index)) {
+            return false;
         }
-        return max(root).key;
+        if (indexes.isEmpty()) {
+            indexes = null;
+        }
+        return true;
     }
 
-    // the largest key in the subtree rooted at x; null if no such key
-    private Node max(Node x) {
-        // assert x != null;
-        if (x.right == null) {
-            return x;
-        } else {
-            return max(x.right);
+    // 把以 x 为根的子树中的所有存活键值对加入索引
+    private void fill(Node x, SecondaryIndex<?, Key, Value> index) {
+        if (x == null) {
+            return;
+        }
+        fill(x.left, index);
+        if (!x.deleted) {
+            index.update(x.key, null, x.val);
         }
+        fill(x.right, index);
     }
 
     /**
-     * Returns the largest key in the symbol table less than or equal to {@code key}.
+     * 键 key 的值从 oldVal 变为 newVal 后通知所有二级索引和变更流；null 表示不存在。
      *
-     * @param key the key
-     * @return the largest key in the symbol table less than or equal to {@code key}
-     * @throws NoSuchElementException   if there is no such key
-     * @throws IllegalArgumentException if {@code key} is {@code null}
+     * @param key    键
+     * @param oldVal 旧值
+     * @param newVal 新值
      */
-    public Key floor(Key key) {
-        if (key == null) {
-            throw new IllegalArgumentException("argument to floor() is null");
+    private void changed(Key key, Value oldVal, Value newVal) {
+        if (oldVal == null && newVal == null) {
+            return;
         }
-        if (isEmpty()) {
-            throw new NoSuchElementException("called floor() with empty symbol table");
+        if (indexes != null) {
+            for (SecondaryIndex<?, Key, Value> index : indexes) {
+                index.update(key, oldVal, newVal);
+            }
         }
-        Node x = floor(root, key);
-        if (x == null) {
-            return null;
-        } else {
-            return x.key;
+        if (changeStream != null) {
+            changeStream.record(key, oldVal, newVal);
         }
     }
 
-    // the largest key in the subtree rooted at x less than or equal to the given key
-    private Node floor(Node x, Key key) {
-        if (x == null) {
-            return null;
-        }
-        int cmp = key.compareTo(x.key);
-        if (cmp == 0) {
-            return x;
+    /***************************************************************************
+     *  变更流。
+     ***************************************************************************/
+
+    /**
+     * 开启变更流：之后的每次修改都会写入一个容量固定的环形缓冲区，由独立的线程成批投递给订阅者。
+     * 修改树时只做几次数组赋值，不分配对象；缓冲区写满时修改操作阻塞，直到投递线程腾出空间。
+     *
+     * @param capacity 缓冲区容量，会向上取整为 2 的幂
+     * @return 变更流
+     * @throws IllegalArgumentException 如果 capacity 不在 1 到 2^30 之间
+     * @throws IllegalStateException    如果已经有一个打开的变更流
+     */
+    public ChangeStream<Key, Value> openChangeStream(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("change stream capacity must be in [1, 2^30]: " + capacity);
         }
-        if (cmp < 0) {
-            return floor(x.left, key);
+        if (changeStream != null && changeStream.isOpen()) {
+            throw new IllegalStateException("change stream already open");
         }
-        Node t = floor(x.right, key);
-        if (t != null) {
-            return t;
-        } else {
-            return x;
+        changeStream = new ChangeStream<>(capacity);
+        return changeStream;
+    }
+
+    /**
+     * 关闭变更流（如果已开启）。缓冲区中剩余的变更仍会投递给订阅者。
+     */
+    public void closeChangeStream() {
+        if (changeStream != null) {
+            changeStream.close();
+            changeStream = null;
         }
     }
 
+    /***************************************************************************
+     *  热点键缓存。
+     ***************************************************************************/
+
     /**
-     * Returns the smallest key in the symbol table greater than or equal to {@code key}.
+     * 开启一个直接映射的热点键缓存，{@link #get} 与 {@link #contains} 命中时只需要一次哈希探查和一次比较。
+     * <p>
+     * 缓存保存的是节点引用。旋转只改变节点之间的链接，不会移动键值对，因此不影响缓存；
+     * 删除时从树中摘除的节点（包括把键值对搬给别的节点的后继节点）会从缓存中移除，
+     * 墓碑节点则在探查时被识别出来。
      *
-     * @param key the key
-     * @return the smallest key in the symbol table greater than or equal to {@code key}
-     * @throws NoSuchElementException   if there is no such key
-     * @throws IllegalArgumentException if {@code key} is {@code null}
+     * @param capacity 槽位数量，会向上取整为 2 的幂
+     * @throws IllegalArgumentException 如果 capacity 不是正数
      */
-    public Key ceiling(Key key) {
-        if (key == null) {
-            throw new IllegalArgumentException("argument to ceiling() is null");
+    public void enableHotKeyCache(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("hot key cache capacity must be in [1, 2^30]: " + capacity);
         }
-        if (isEmpty()) {
-            throw new NoSuchElementException("called ceiling() with empty symbol table");
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
         }
-        Node x = ceiling(root, key);
-        if (x == null) {
+        hotCache = new Object[n];
+        hotHits = 0;
+        hotMisses = 0;
+    }
+
+    /**
+     * 关闭热点键缓存。
+     */
+    public void disableHotKeyCache() {
+        hotCache = null;
+    }
+
+    /**
+     * 返回热点键缓存的命中次数。
+     *
+     * @return 命中次数
+     */
+    public long hotKeyCacheHits() {
+        return hotHits;
+    }
+
+    /**
+     * 返回热点键缓存的未命中次数。
+     *
+     * @return 未命中次数
+     */
+    public long hotKeyCacheMisses() {
+        return hotMisses;
+    }
+
+    /**
+     * 返回热点键缓存的命中率；还没有查询时返回 0。
+     *
+     * @return 命中率
+     */
+    public double hotKeyCacheHitRate() {
+        long total = hotHits + hotMisses;
+        return total == 0 ? 0 : (double) hotHits / total;
+    }
+
+    // 返回键在热点键缓存中的槽位
+    private int slot(Key key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return (h ^ h >>> 16) & (hotCache.length - 1);
+    }
+
+    // 把键所在的槽位清空；节点即将从树中摘除时调用
+    private void uncache(Key key) {
+        if (hotCache != null) {
+            hotCache[slot(key)] = null;
+        }
+    }
+
+    /***************************************************************************
+     *  按访问频率自适应重建。
+     ***************************************************************************/
+
+    /**
+     * 开启自适应模式：{@link #get} 与 {@link #contains} 在找到的节点上累加读取次数。
+     * 读取本身不改变树的形状；累计读取 period 次之后，{@link #restructureIfNeeded()} 按读取次数重建整棵树，
+     * 让经常读取的键靠近根节点。重建的时机由调用方决定，例如在读取的间隙或者维护线程中调用，
+     * 与延迟删除模式下的 {@link #compactIfNeeded()} 相同。
+     * <p>
+     * 读取从此会修改节点上的计数，因此即使只有读操作，多个线程并发访问时也需要外部同步。
+     * 重建的代价与树的大小成正比（再乘一个对数因子），period 不宜小于树中的键数。
+     * 读取次数保存在扩展节点中：第一次开启时把已有的普通节点逐个换成扩展节点，每个节点多占 16 字节。
+     *
+     * @param period 两次重建之间至少累计的读取次数
+     * @throws IllegalArgumentException 如果 period 不是正数
+     */
+    public void enableAdaptive(int period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("adaptive period must be positive: " + period);
+        }
+        augment();
+        adaptivePeriod = period;
+        adaptiveReads = 0;
+    }
+
+    /**
+     * 关闭自适应模式。树保持最近一次重建后的形状，之后的修改照常维持红黑树的平衡。
+     */
+    public void disableAdaptive() {
+        adaptivePeriod = 0;
+    }
+
+    /**
+     * 如果自适应模式已开启，且上一次重建以来累计的读取次数达到周期，则调用 {@link #restructure()}。
+     *
+     * @return 如果执行了重建则返回 true
+     */
+    public boolean restructureIfNeeded() {
+        if (adaptivePeriod == 0 || adaptiveReads < adaptivePeriod) {
+            return false;
+        }
+        restructure();
+        return true;
+    }
+
+    /**
+     * 按读取次数重建整棵树，同时移除所有墓碑，然后把每个节点的读取次数减半，使旧的访问逐渐失去影响。
+     * <p>
+     * 每个键的权重是读取次数加一，每棵子树都尽量以权重的中位数所在的键作根，与近似最优二叉搜索树的构造方法相同，
+     * 被读取的比例为 p 的键深度约为 log(1/p)。根的位置受黑高约束限制，超出允许范围时取最近的合法位置，
+     * 因此结果仍是一棵合法的左倾红黑树，冷门键的深度依然是 O(log n)；没有访问记录时退化为普通的平衡重建。
+     * 整棵树的黑高比完全平衡时低 2，给根的位置留出选择范围，代价是树高最多增加几层。
+     */
+    public void restructure() {
+        Object[] live = liveNodes();
+        int n = live.length;
+        int black = 0;
+        for (long capacity = 0; capacity < n; capacity = 3 * capacity + 2) {
+            black++;  // 能容纳 n 个键的最小黑高
+        }
+        black = Math.max(black, 31 - Integer.numberOfLeadingZeros(n + 1) - 2);
+        long[] w = new long[n + 1];
+        for (int i = 0; i < n; i++) {
+            @SuppressWarnings("unchecked")
+            Node x = (Node) live[i];
+            w[i + 1] = w[i] + 1;
+            if (augmented) {
+                AugmentedNode<?, ?> a = (AugmentedNode<?, ?>) x;
+                w[i + 1] += a.hits;
+                a.hits >>>= 1;
+            }
+        }
+        root = restructure(live, w, 0, n, black);
+        if (root != null) {
+            root.color = BLACK;
+        }
+        nodes = n;
+        tombstones = 0;
+        adaptiveReads = 0;
+    }
+
+    /**
+     * 返回从根到给定键所在节点经过的链接数，根节点的深度为 0。
+     *
+     * @param key 键
+     * @return 键的深度；如果键不存在则返回 -1
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public int depth(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to depth() is null");
+        }
+        int d = 0;
+        Node x = root;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if (cmp == 0) {
+                return x.deleted ? -1 : d;
+            }
+            x = cmp < 0 ? x.left : x.right;
+            d++;
+        }
+        return -1;
+    }
+
+    // 记录一次读取；重建留给 restructureIfNeeded，读路径上只做计数
+    private void touch(Node x) {
+        AugmentedNode<?, ?> a = (AugmentedNode<?, ?>) x;
+        if (a.hits < Integer.MAX_VALUE) {
+            a.hits++;
+        }
+        if (adaptiveReads < Integer.MAX_VALUE) {
+            adaptiveReads++;
+        }
+    }
+
+    /**
+     * 用 a[lo, hi) 构造一棵黑高为 black 的左倾红黑树，让权重大的键尽量靠近根。
+     * <p>
+     * 黑高为 b - 1 的子树可以容纳 2^(b-1) - 1 到 3^(b-1) - 1 个键。根为 2-节点时，
+     * 它两侧的键数都必须落在这个范围内；根为 3-节点时，黑色根节点右侧的键数落在这个范围内，
+     * 左侧的键（含红色子节点）分成两棵这样的子树。两种情况各自给出一段允许作根的下标区间，
+     * 把权重中位数的下标限制到区间内作为候选，取离中位数较近的一个；红色子节点再按同样的方法选出。
+     *
+     * @param a     按键升序排列的节点
+     * @param w     权重的前缀和，w[i] 为 a[0, i) 的权重之和
+     * @param lo    起始下标（含）
+     * @param hi    结束下标（不含）
+     * @param black 子树的黑高
+     * @return 子树的根节点（黑色）
+     */
+    @SuppressWarnings("unchecked")
+    private Node restructure(Object[] a, long[] w, int lo, int hi, int black) {
+        int n = hi - lo;
+        if (n == 0) {
             return null;
+        }
+        long childMin = (1L << (black - 1)) - 1;
+        long childMax = 1;
+        for (int i = 1; i < black; i++) {
+            childMax *= 3;
+        }
+        childMax -= 1;
+
+        int median = median(w, lo, hi);
+        // 2-节点：左侧 m - lo 个键，右侧 n - 1 - (m - lo) 个键
+        int two = clamp(median, lo + (int) Math.max(childMin, n - 1 - childMax),
+                lo + (int) Math.min(childMax, n - 1 - childMin));
+        // 3-节点：黑色根节点右侧 n - 1 - (p - lo) 个键，左侧 p - lo 个键
+        int three = clamp(median, lo + (int) Math.max(2 * childMin + 1, n - 1 - childMax),
+                lo + (int) Math.min(2 * childMax + 1, n - 1 - childMin));
+
+        if (two >= 0 && (three < 0 || Math.abs(two - median) <= Math.abs(three - median))) {
+            Node x = (Node) a[two];
+            x.left = restructure(a, w, lo, two, black - 1);
+            x.right = restructure(a, w, two + 1, hi, black - 1);
+            x.color = BLACK;
+            update(x);
+            return x;
+        }
+
+        int red = clamp(median(w, lo, three), lo + (int) Math.max(childMin, three - lo - 1 - childMax),
+                lo + (int) Math.min(childMax, three - lo - 1 - childMin));
+        Node l = (Node) a[red];
+        Node r = (Node) a[three];
+        l.left = restructure(a, w, lo, red, black - 1);
+        l.right = restructure(a, w, red + 1, three, black - 1);
+        l.color = RED;
+        update(l);
+        r.left = l;
+        r.right = restructure(a, w, three + 1, hi, black - 1);
+        r.color = BLACK;
+        update(r);
+        return r;
+    }
+
+    // 返回 [lo, hi) 中权重的中位数所在的下标：w[m] <= 中点 < w[m + 1]，w 为权重的前缀和
+    private static int median(long[] w, int lo, int hi) {
+        long half = w[lo] + (w[hi] - w[lo]) / 2;
+        int l = lo;
+        int h = hi - 1;
+        while (l < h) {
+            int m = (l + h + 1) >>> 1;
+            if (w[m] <= half) {
+                l = m;
+            } else {
+                h = m - 1;
+            }
+        }
+        return l;
+    }
+
+    // 把 i 限制在 [from, to] 中；区间为空时返回 -1
+    private static int clamp(int i, int from, int to) {
+        return from > to ? -1 : Math.max(from, Math.min(to, i));
+    }
+
+    /***************************************************************************
+     *  内存统计与内存上限。
+     ***************************************************************************/
+
+    /**
+     * 当达到内存软上限时插入新键的处理方式。
+     */
+    public enum MemoryPolicy {
+        /**
+         * 拒绝插入，抛出 {@link IllegalStateException}。
+         */
+        REJECT,
+        /**
+         * 逐出最小的键，直到新键能放下为止。
+         */
+        EVICT
+    }
+
+    /**
+     * 返回节点数量和按当前 JVM 布局估计的节点浅大小，不抽样键和值。
+     *
+     * @return 内存统计
+     */
+    public MemoryStats memoryStats() {
+        return memoryStats(0);
+    }
+
+    /**
+     * 返回内存统计，并随机抽样最多 samples 个节点，用它们的键和值的平均深大小外推整棵树的键和值占用。
+     * <p>
+     * 抽样按节点均匀进行：先按出现次数随机选出一个节点，再以重数的倒数为概率接受它，
+     * 因此多重集模式下重数大的键不会被多算。尝试次数有上限，重数极不均匀时实际抽到的节点数可能少于 samples。
+     *
+     * @param samples 抽样的节点数
+     * @return 内存统计
+     * @throws IllegalArgumentException 如果 samples 为负数
+     */
+    public MemoryStats memoryStats(int samples) {
+        if (samples < 0) {
+            throw new IllegalArgumentException("number of samples is negative: " + samples);
+        }
+        int n = 0;
+        long keys = 0;
+        long vals = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long attempts = isEmpty() ? 0 : 8L * samples; n < samples && attempts > 0; attempts--) {
+            Node x = select(root, random.nextInt(size()));
+            if (x.getCount() > 1 && random.nextInt(x.getCount()) != 0) {
+                continue;
+            }
+            keys += MemoryStats.deepSize(x.key);
+            vals += MemoryStats.deepSize(x.val);
+            n++;
+        }
+        // 墓碑节点仍然持有键，但已经释放了值
+        long keyBytes = n == 0 ? 0 : keys * nodes / n;
+        long valueBytes = n == 0 ? 0 : vals * (nodes - tombstones) / n;
+        return new MemoryStats(nodes, tombstones, augmented ? AUGMENTED_NODE_BYTES : NODE_BYTES, n, keyBytes, valueBytes);
+    }
+
+    /**
+     * 设置内存软上限。占用按“节点数 × 每个节点连同键和值的平均字节数”估计，平均字节数由抽样得到，
+     * 并在节点数翻倍时重新校准。只有真正要分配新节点时才检查上限，更新已有的键不受影响；
+     * compute 系列方法在键不存在、并且计算出的新值不为 null 时才按插入处理。
+     * EVICT 策略从最小的一端逐个摘除节点（包括墓碑），每个 O(log n)，不会重建整棵树。
+     *
+     * @param bytes  上限（字节），0 表示取消上限
+     * @param policy 达到上限时的处理方式
+     * @throws IllegalArgumentException 如果 bytes 为负数或 policy 为 null
+     */
+    public void setMemoryLimit(long bytes, MemoryPolicy policy) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("memory limit is negative: " + bytes);
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("memory policy is null");
+        }
+        memoryLimit = bytes;
+        memoryPolicy = policy;
+        calibrate();
+    }
+
+    // 重新估计每个节点连同键和值的平均字节数
+    private void calibrate() {
+        MemoryStats stats = memoryStats(CALIBRATION_SAMPLES);
+        entryBytes = augmented ? AUGMENTED_NODE_BYTES : NODE_BYTES;
+        if (stats.sampled() > 0) {
+            entryBytes += (stats.keyBytes() + stats.valueBytes()) / Math.max(1, nodes);
+        }
+        calibrateAt = Math.max(64, 2 * nodes);
+    }
+
+    /**
+     * 判断写入 key 是否需要分配一个新节点，并且新节点会超过内存上限。
+     * 键已经有节点（包括墓碑）时写入只会复用它，不受上限约束。
+     *
+     * @param key 将要写入的键
+     * @return 如果需要先腾出空间则返回 true
+     */
+    private boolean overLimit(Key key) {
+        if (memoryLimit == 0) {
+            return false;
+        }
+        if (nodes >= calibrateAt) {
+            calibrate();
+        }
+        if ((nodes + 1) * entryBytes <= memoryLimit) {
+            return false;
+        }
+        Node x = root;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if (cmp == 0) {
+                return false;
+            }
+            x = cmp < 0 ? x.left : x.right;
+        }
+        return true;
+    }
+
+    /**
+     * 为一个新节点腾出空间：REJECT 策略抛出异常，EVICT 策略逐出最小的节点直到新节点能放下为止。
+     *
+     * @throws IllegalStateException 如果策略为 REJECT
+     */
+    private void makeRoom() {
+        if (memoryPolicy == MemoryPolicy.REJECT) {
+            throw new IllegalStateException("memory limit of " + memoryLimit + " bytes reached");
+        }
+        long excess = nodes + 1 - memoryLimit / entryBytes;
+        for (long i = 0; i < excess && root != null; i++) {
+            evictMin();
+        }
+    }
+
+    // 从结构上摘除最小的节点，无论它是存活的节点还是墓碑；存活节点的所有出现都会被删除
+    private void evictMin() {
+        Node x = min(root);
+        if (!isRed(root.left) && !isRed(root.right)) {
+            root.color = RED;
+        }
+        root = deleteMin(root);
+        if (root != null) {
+            root.color = BLACK;
+        }
+        nodes--;
+        uncache(x.key);
+        if (x.deleted) {
+            tombstones--;
         } else {
-            return x.key;
+            changed(x.key, x.val, null);
+        }
+    }
+
+    /***************************************************************************
+     *  Red-black tree helper functions.
+     ***************************************************************************/
+
+    // make a left-leaning link lean to the right
+    private Node rotateRight(Node h) {
+        // assert (h != null) && isRed(h.left);
+        Node x = h.left;
+        h.left = x.right;
+        x.right = h;
+        x.color = x.right.color;
+        x.right.color = RED;
+        x.size = h.size;
+        if (hashing) {
+            ((AugmentedNode<?, ?>) x).hash = ((AugmentedNode<?, ?>) h).hash;
+        }
+        update(h);
+        return x;
+    }
+
+    // make a right-leaning link lean to the left
+    private Node rotateLeft(Node h) {
+        // assert (h != null) && isRed(h.right);
+        Node x = h.right;
+        h.right = x.left;
+        x.left = h;
+        x.color = x.left.color;
+        x.left.color = RED;
+        x.size = h.size;
+        if (hashing) {
+            ((AugmentedNode<?, ?>) x).hash = ((AugmentedNode<?, ?>) h).hash;
+        }
+        update(h);
+        return x;
+    }
+
+    // flip the colors of a node and its two children
+    private void flipColors(Node h) {
+        // h must have opposite color of its two children
+        // assert (h != null) && (h.left != null) && (h.right != null);
+        // assert (!isRed(h) &&  isRed(h.left) &&  isRed(h.right))
+        //    || (isRed(h)  && !isRed(h.left) && !isRed(h.right));
+        h.color = !h.color;
+        h.left.color = !h.left.color;
+        h.right.color = !h.right.color;
+    }
+
+    // Assuming that h is red and both h.left and h.left.left
+    // are black, make h.left or one of its children red.
+    private Node moveRedLeft(Node h) {
+        // assert (h != null);
+        // assert isRed(h) && !isRed(h.left) && !isRed(h.left.left);
+
+        flipColors(h);
+        if (isRed(h.right.left)) {
+            h.right = rotateRight(h.right);
+            h = rotateLeft(h);
+            flipColors(h);
+        }
+        return h;
+    }
+
+    // Assuming that h is red and both h.right and h.right.left
+    // are black, make h.right or one of its children red.
+    private Node moveRedRight(Node h) {
+        // assert (h != null);
+        // assert isRed(h) && !isRed(h.right) && !isRed(h.right.left);
+        flipColors(h);
+        if (isRed(h.left.left)) {
+            h = rotateRight(h);
+            flipColors(h);
+        }
+        return h;
+    }
+
+    // restore red-black tree invariant
+    private Node balance(Node h) {
+        // assert (h != null);
+
+        if (isRed(h.right)) {
+            h = rotateLeft(h);
+        }
+        if (isRed(h.left) && isRed(h.left.left)) {
+            h = rotateRight(h);
+        }
+        if (isRed(h.left) && isRed(h.right)) {
+            flipColors(h);
+        }
+
+        update(h);
+        return h;
+    }
+
+    /**
+     * Returns the height of the BST (for debugging).
+     *
+     * @return the height of the BST (a 1-node tree has height 0)
+     */
+    public int height() {
+        return height(root);
+    }
+
+
+    /***************************************************************************
+     *  Utility functions.
+     ***************************************************************************/
+
+    private int height(Node x) {
+        if (x == null) {
+            return -1;
+        }
+        return 1 + Math.max(height(x.left), height(x.right));
+    }
+
+    /**
+     * Returns the smallest key in the symbol table.
+     *
+     * @return the smallest key in the symbol table
+     * @throws NoSuchElementException if the symbol table is empty
+     */
+    public Key min() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("called min() with empty symbol table");
+        }
+        if (tombstones > 0) {
+            return select(0);
+        }
+        return min(root).key;
+    }
+
+    /***************************************************************************
+     *  Ordered symbol table methods.
+     ***************************************************************************/
+
+    // the smallest key in subtree rooted at x; null if no such key
+    private Node min(Node x) {
+        // assert x != null;
+        if (x.left == null) {
+            return x;
+        } else {
+            return min(x.left);
+        }
+    }
+
+    /**
+     * Returns the largest key in the symbol table.
+     *
+     * @return the largest key in the symbol table
+     * @throws NoSuchElementException if the symbol table is empty
+     */
+    public Key max() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("called max() with empty symbol table");
+        }
+        if (tombstones > 0) {
+            return select(size() - 1);
+        }
+        return max(root).key;
+    }
+
+    // the largest key in the subtree rooted at x; null if no such key
+    private Node max(Node x) {
+        // assert x != null;
+        if (x.right == null) {
+            return x;
+        } else {
+            return max(x.right);
+        }
+    }
+
+    /**
+     * Returns the largest key in the symbol table less than or equal to {@code key}.
+     *
+     * @param key the key
+     * @return the largest key in the symbol table less than or equal to {@code key}
+     * @throws NoSuchElementException   if there is no such key
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public Key floor(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to floor() is null");
+        }
+        if (isEmpty()) {
+            throw new NoSuchElementException("called floor() with empty symbol table");
+        }
+        if (tombstones > 0) {
+            // 借助只统计存活键的子树计数跳过墓碑
+            if (contains(key)) {
+                return key;
+            }
+            int r = rank(key);
+            return r == 0 ? null : select(r - 1);
+        }
+        Node x = floor(root, key);
+        if (x == null) {
+            return null;
+        } else {
+            return x.key;
+        }
+    }
+
+    // the largest key in the subtree rooted at x less than or equal to the given key
+    private Node floor(Node x, Key key) {
+        if (x == null) {
+            return null;
+        }
+        int cmp = key.compareTo(x.key);
+        if (cmp == 0) {
+            return x;
+        }
+        if (cmp < 0) {
+            return floor(x.left, key);
+        }
+        Node t = floor(x.right, key);
+        if (t != null) {
+            return t;
+        } else {
+            return x;
+        }
+    }
+
+    /**
+     * Returns the smallest key in the symbol table greater than or equal to {@code key}.
+     *
+     * @param key the key
+     * @return the smallest key in the symbol table greater than or equal to {@code key}
+     * @throws NoSuchElementException   if there is no such key
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public Key ceiling(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to ceiling() is null");
+        }
+        if (isEmpty()) {
+            throw new NoSuchElementException("called ceiling() with empty symbol table");
+        }
+        if (tombstones > 0) {
+            // 借助只统计存活键的子树计数跳过墓碑
+            if (contains(key)) {
+                return key;
+            }
+            int r = rank(key);
+            return r == size() ? null : select(r);
+        }
+        Node x = ceiling(root, key);
+        if (x == null) {
+            return null;
+        } else {
+            return x.key;
+        }
+    }
+
+    // the smallest key in the subtree rooted at x greater than or equal to the given key
+    private Node ceiling(Node x, Key key) {
+        if (x == null) {
+            return null;
+        }
+        int cmp = key.compareTo(x.key);
+        if (cmp == 0) {
+            return x;
+        }
+        if (cmp > 0) {
+            return ceiling(x.right, key);
+        }
+        Node t = ceiling(x.left, key);
+        if (t != null) {
+            return t;
+        } else {
+            return x;
+        }
+    }
+
+    /**
+     * Return the kth smallest key in the symbol table.
+     * In multiset mode every occurrence of a key has its own rank.
+     *
+     * @param k the order statistic
+     * @return the {@code k}th smallest key in the symbol table
+     * @throws IllegalArgumentException unless {@code k} is between 0 and
+     *                                  <em>n</em>–1
+     */
+    public Key select(int k) {
+        if (k < 0 || k >= size()) {
+            throw new IllegalArgumentException("called select() with invalid argument: " + k);
+        }
+        Node x = select(root, k);
+        return x.key;
+    }
+
+    // the key of rank k in the subtree rooted at x
+    private Node select(Node x, int k) {
+        // assert x != null;
+        // assert k >= 0 && k < size(x);
+        int t = size(x.left);
+        if (t > k) {
+            return select(x.left, k);
+        } else if (t + weight(x) <= k) {
+            return select(x.right, k - t - weight(x));
+        } else {
+            return x;
+        }
+    }
+
+    /**
+     * Return the number of keys in the symbol table strictly less than {@code key}.
+     *
+     * @param key the key
+     * @return the number of keys in the symbol table strictly less than {@code key}
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public int rank(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to rank() is null");
+        }
+        return rank(key, root);
+    }
+
+    // number of keys less than key in the subtree rooted at x
+    private int rank(Key key, Node x) {
+        if (x == null) {
+            return 0;
+        }
+        int cmp = key.compareTo(x.key);
+        if (cmp < 0) {
+            return rank(key, x.left);
+        } else if (cmp > 0) {
+            return weight(x) + size(x.left) + rank(key, x.right);
+        } else {
+            return size(x.left);
+        }
+    }
+
+    /**
+     * Returns all keys in the symbol table as an {@code Iterable}.
+     * In multiset mode each distinct key is returned once.
+     * To iterate over all of the keys in the symbol table named {@code st},
+     * use the foreach notation: {@code for (Key key : st.keys())}.
+     *
+     * @return all keys in the symbol table as an {@code Iterable}
+     */
+    public Iterable<Key> keys() {
+        if (isEmpty()) {
+            return new LinkedList<>();
+        }
+        return keys(min(), max());
+    }
+
+    /***************************************************************************
+     *  Range count and range search.
+     ***************************************************************************/
+
+    /**
+     * Returns all keys in the symbol table in the given range,
+     * as an {@code Iterable}.
+     *
+     * @param lo minimum endpoint
+     * @param hi maximum endpoint
+     * @return all keys in the sybol table between {@code lo}
+     * (inclusive) and {@code hi} (inclusive) as an {@code Iterable}
+     * @throws IllegalArgumentException if either {@code lo} or {@code hi}
+     *                                  is {@code null}
+     */
+    public Iterable<Key> keys(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to keys() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to keys() is null");
+        }
+
+        Queue<Key> queue = new LinkedList<>();
+        // if (isEmpty() || lo.compareTo(hi) > 0) return queue;
+        keys(root, queue, lo, hi);
+        return queue;
+    }
+
+    // add the keys between lo and hi in the subtree rooted at x
+    // to the queue
+    private void keys(Node x, Queue<Key> queue, Key lo, Key hi) {
+        // 子树计数为 0 说明子树中只有墓碑
+        if (x == null || x.size == 0) {
+            return;
+        }
+        int cmplo = lo.compareTo(x.key);
+        int cmphi = hi.compareTo(x.key);
+        if (cmplo < 0) {
+            keys(x.left, queue, lo, hi);
+        }
+        if (cmplo <= 0 && cmphi >= 0 && !x.deleted) {
+            queue.add(x.key);
+        }
+        if (cmphi > 0) {
+            keys(x.right, queue, lo, hi);
+        }
+    }
+
+    /**
+     * Returns the number of keys in the symbol table in the given range.
+     *
+     * @param lo minimum endpoint
+     * @param hi maximum endpoint
+     * @return the number of keys in the sybol table between {@code lo}
+     * (inclusive) and {@code hi} (inclusive)
+     * @throws IllegalArgumentException if either {@code lo} or {@code hi}
+     *                                  is {@code null}
+     */
+    public int size(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to size() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to size() is null");
+        }
+
+        if (lo.compareTo(hi) > 0) {
+            return 0;
+        }
+        Node x = find(hi);
+        if (x != null) {
+            return rank(hi) - rank(lo) + x.getCount();
+        } else {
+            return rank(hi) - rank(lo);
+        }
+    }
+
+    /***************************************************************************
+     *  均匀随机抽样。
+     ***************************************************************************/
+
+    /**
+     * 从整个符号表中不放回地均匀抽取 k 个键值对，按键的顺序返回它们的键。
+     * 多重集模式下按出现次数抽样，同一个键可能出现多次。
+     * <p>
+     * 先生成 k 个互不相同的有序排名，再在一次共享的遍历中借助子树计数把它们同时定位到节点上，
+     * 只会进入包含被抽中排名的子树，因此远快于 k 次独立的 {@link #select}。
+     *
+     * @param k 样本大小；大于键值对数量时返回全部的键
+     * @return 抽中的键
+     * @throws IllegalArgumentException 如果 k 为负数
+     */
+    public Iterable<Key> sample(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("sample size is negative: " + k);
+        }
+        return sample(0, size(), k);
+    }
+
+    /**
+     * 从 [lo, hi] 之间的键值对中不放回地均匀抽取 k 个，按键的顺序返回它们的键。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @param k  样本大小；大于区间内键值对数量时返回区间内全部的键
+     * @return 抽中的键
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null，或 k 为负数
+     */
+    public Iterable<Key> sample(Key lo, Key hi, int k) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to sample() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to sample() is null");
+        }
+        if (k < 0) {
+            throw new IllegalArgumentException("sample size is negative: " + k);
+        }
+        return sample(rank(lo), size(lo, hi), k);
+    }
+
+    // 从排名区间 [from, from + n) 中抽取 k 个互不相同的排名，并在一次遍历中取出对应的键
+    private Iterable<Key> sample(int from, int n, int k) {
+        int[] ranks = distinctRanks(n, Math.min(k, n), ThreadLocalRandom.current());
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] += from;
+        }
+        List<Key> keys = new ArrayList<>(ranks.length);
+        collect(root, 0, ranks, 0, ranks.length, keys);
+        return keys;
+    }
+
+    /**
+     * 按升序返回 [0, n) 中均匀随机的 k 个互不相同的整数。
+     * 每一轮补齐缺少的个数、排序并去重，直到凑满 k 个；k 超过 n 的一半时改为抽取补集。
+     *
+     * @param n      取值范围
+     * @param k      个数，不超过 n
+     * @param random 随机数源
+     * @return 有序的整数
+     */
+    private static int[] distinctRanks(int n, int k, Random random) {
+        if (2L * k > n) {
+            int[] skip = distinctRanks(n, n - k, random);
+            int[] ranks = new int[k];
+            int j = 0;
+            int s = 0;
+            for (int i = 0; i < n; i++) {
+                if (s < skip.length && skip[s] == i) {
+                    s++;
+                } else {
+                    ranks[j++] = i;
+                }
+            }
+            return ranks;
+        }
+        int[] ranks = new int[k];
+        int[] sorted = new int[k];
+        int[] start = new int[k + 1];
+        int distinct = 0;
+        while (distinct < k) {
+            for (int i = distinct; i < k; i++) {
+                ranks[i] = random.nextInt(n);
+            }
+            bucketSort(ranks, sorted, start, n);
+            distinct = 0;
+            for (int i = 0; i < k; i++) {
+                if (distinct == 0 || sorted[i] != ranks[distinct - 1]) {
+                    ranks[distinct++] = sorted[i];
+                }
+            }
+        }
+        return ranks;
+    }
+
+    /**
+     * 把 [0, n) 中的整数 a 排序到 sorted 中。数值近似均匀分布，因此按数值把它们分到 a.length 个桶里，
+     * 每个桶平均只有一个元素，最后的插入排序只需移动常数次，期望时间为 O(k)。
+     *
+     * @param a      待排序的整数
+     * @param sorted 排序结果，长度与 a 相同
+     * @param start  长度为 a.length + 1 的临时数组
+     * @param n      取值范围
+     */
+    private static void bucketSort(int[] a, int[] sorted, int[] start, int n) {
+        int k = a.length;
+        Arrays.fill(start, 0);
+        for (int v : a) {
+            start[(int) ((long) v * k / n) + 1]++;
+        }
+        for (int i = 0; i < k; i++) {
+            start[i + 1] += start[i];
+        }
+        for (int v : a) {
+            sorted[start[(int) ((long) v * k / n)]++] = v;
+        }
+        for (int i = 1; i < k; i++) {
+            int v = sorted[i];
+            int j = i - 1;
+            while (j >= 0 && sorted[j] > v) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = v;
+        }
+    }
+
+    /**
+     * 把有序排名 ranks[lo, hi) 定位到以 x 为根的子树中，按顺序把对应的键加入 keys。
+     * 这些排名都落在 [offset, offset + size(x)) 之内。
+     *
+     * @param x      子树的根
+     * @param offset 子树中最小键的排名
+     * @param ranks  有序的排名
+     * @param lo     起始下标（含）
+     * @param hi     结束下标（不含）
+     * @param keys   收集结果的列表
+     */
+    private void collect(Node x, int offset, int[] ranks, int lo, int hi, List<Key> keys) {
+        if (lo >= hi) {
+            return;
+        }
+        int self = offset + size(x.left);
+        int mid = lowerBound(ranks, lo, hi, self);
+        int right = lowerBound(ranks, mid, hi, self + weight(x));
+        collect(x.left, offset, ranks, lo, mid, keys);
+        for (int i = mid; i < right; i++) {
+            keys.add(x.key);
+        }
+        collect(x.right, self + weight(x), ranks, right, hi, keys);
+    }
+
+    // 返回 a[lo, hi) 中第一个不小于 target 的元素的下标
+    private static int lowerBound(int[] a, int lo, int hi, int target) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < target) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /***************************************************************************
+     *  最近键查询。
+     ***************************************************************************/
+
+    /**
+     * 返回与给定键距离最近的至多 k 个键，按距离从近到远排列，距离相同时较小的键在前。
+     * 给定键本身在符号表中时距离通常为 0，也会被返回；多重集模式下每个不同的键只返回一次。
+     * <p>
+     * 只从根下降一次，同时建立向左和向右的两个中序游标，然后从探测位置向两侧交替扩展，
+     * 每一步取两侧候选中距离较近的一个，最多访问 k 个键和两条路径上的节点，不会复制周围的区间。
+     * 要求距离在探测位置的每一侧都随键远离而单调不减，例如数值键的差的绝对值。
+     *
+     * @param key      探测键
+     * @param k        最多返回的键数
+     * @param distance 距离函数，第一个参数总是探测键
+     * @return 距离最近的键
+     * @throws IllegalArgumentException 如果 key 或 distance 为 null，或 k 为负数
+     */
+    public Iterable<Key> nearest(Key key, int k, ToDoubleBiFunction<? super Key, ? super Key> distance) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to nearest() is null");
+        }
+        if (distance == null) {
+            throw new IllegalArgumentException("third argument to nearest() is null");
+        }
+        if (k < 0) {
+            throw new IllegalArgumentException("called nearest() with invalid argument: " + k);
+        }
+        List<Key> result = new ArrayList<>(Math.min(k, distinctSize()));
+        if (k == 0) {
+            return result;
+        }
+        Cursor lower = new Cursor(false);
+        Cursor higher = new Cursor(true);
+        probe(key, true, lower, higher);
+        Node lo = lower.next();
+        Node hi = higher.next();
+        double dlo = lo == null ? 0 : distance.applyAsDouble(key, lo.key);
+        double dhi = hi == null ? 0 : distance.applyAsDouble(key, hi.key);
+        while (result.size() < k && (lo != null || hi != null)) {
+            if (hi == null || lo != null && dlo <= dhi) {
+                result.add(lo.key);
+                lo = lower.next();
+                dlo = lo == null ? 0 : distance.applyAsDouble(key, lo.key);
+            } else {
+                result.add(hi.key);
+                hi = higher.next();
+                dhi = hi == null ? 0 : distance.applyAsDouble(key, hi.key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 返回严格小于给定键的至多 k 个最大的键，从大到小排列。
+     *
+     * @param key 探测键
+     * @param k   最多返回的键数
+     * @return 小于 key 的最近的键
+     * @throws IllegalArgumentException 如果 key 为 null，或 k 为负数
+     */
+    public Iterable<Key> lowerK(Key key, int k) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to lowerK() is null");
+        }
+        if (k < 0) {
+            throw new IllegalArgumentException("called lowerK() with invalid argument: " + k);
+        }
+        Cursor lower = new Cursor(false);
+        probe(key, false, lower, null);
+        return take(lower, k);
+    }
+
+    /**
+     * 返回严格大于给定键的至多 k 个最小的键，从小到大排列。
+     *
+     * @param key 探测键
+     * @param k   最多返回的键数
+     * @return 大于 key 的最近的键
+     * @throws IllegalArgumentException 如果 key 为 null，或 k 为负数
+     */
+    public Iterable<Key> higherK(Key key, int k) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to higherK() is null");
+        }
+        if (k < 0) {
+            throw new IllegalArgumentException("called higherK() with invalid argument: " + k);
+        }
+        Cursor higher = new Cursor(true);
+        probe(key, false, null, higher);
+        return take(higher, k);
+    }
+
+    /**
+     * 返回按升序逐个产生区间 [lo, hi) 中的键的迭代器，hi 为 null 表示没有上界。
+     * 键在迭代时才从树中取出，不复制区间；迭代期间不能修改树。
+     *
+     * @param lo 起始键（含）
+     * @param hi 结束键（不含），可以为 null
+     * @return 升序的键迭代器
+     */
+    Iterator<Key> ascending(Key lo, Key hi) {
+        final Cursor cursor = new Cursor(true);
+        probe(lo, true, null, cursor);
+        return new Iterator<Key>() {
+            private Node next = advance();
+
+            private Node advance() {
+                Node x = cursor.next();
+                return x == null || hi != null && x.key.compareTo(hi) >= 0 ? null : x;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Key next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Key key = next.key;
+                next = advance();
+                return key;
+            }
+        };
+    }
+
+    // 从根下降到 key 的位置，把路径上小于 key 的节点压入 lower，大于 key 的节点压入 higher；
+    // 等于 key 的节点在 inclusive 时压入 higher，否则两侧都不包含它。游标为 null 时忽略对应一侧
+    private void probe(Key key, boolean inclusive, Cursor lower, Cursor higher) {
+        Node x = root;
+        while (x != null && x.size > 0) {
+            int cmp = key.compareTo(x.key);
+            if (cmp < 0) {
+                if (higher != null) {
+                    higher.push(x);
+                }
+                x = x.left;
+            } else if (cmp > 0) {
+                if (lower != null) {
+                    lower.push(x);
+                }
+                x = x.right;
+            } else {
+                if (lower != null) {
+                    lower.spine(x.left);
+                }
+                if (higher != null) {
+                    if (inclusive) {
+                        higher.push(x);
+                    } else {
+                        higher.spine(x.right);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    // 从游标中依次取出至多 k 个存活的键
+    private List<Key> take(Cursor cursor, int k) {
+        List<Key> result = new ArrayList<>();
+        for (Node x = k > 0 ? cursor.next() : null; x != null; x = result.size() < k ? cursor.next() : null) {
+            result.add(x.key);
+        }
+        return result;
+    }
+
+    // 用显式栈实现的单向中序游标：栈中的每个节点连同它朝前进方向的子树都还没有访问。
+    // 栈中的节点总在同一条从根出发的路径上，所以栈的深度不超过树高
+    private class Cursor {
+        private final boolean ascending;
+        private final Object[] stack = new Object[2 * (32 - Integer.numberOfLeadingZeros(nodes)) + 2];
+        private int top;
+
+        Cursor(boolean ascending) {
+            this.ascending = ascending;
+        }
+
+        void push(Node x) {
+            stack[top++] = x;
+        }
+
+        // 压入以 x 为根的子树中朝起点方向的一条链；只含墓碑的子树整体跳过
+        void spine(Node x) {
+            while (x != null && x.size > 0) {
+                stack[top++] = x;
+                x = ascending ? x.left : x.right;
+            }
+        }
+
+        // 返回下一个存活的节点；没有时返回 null
+        @SuppressWarnings("unchecked")
+        Node next() {
+            while (top > 0) {
+                Node x = (Node) stack[--top];
+                spine(ascending ? x.right : x.left);
+                if (!x.deleted) {
+                    return x;
+                }
+            }
+            return null;
+        }
+    }
+
+    /***************************************************************************
+     *  只读快照。
+     ***************************************************************************/
+
+    /**
+     * 生成当前内容的只读快照。快照把键和值保存在连续的数组中，并以 Eytzinger 顺序组织查找，
+     * 与原来的树互不影响。通过一次中序遍历在线性时间内构造。
+     *
+     * @return 只读快照
+     */
+    public FrozenRedBlackTree<Key, Value> freeze() {
+        return freeze(true);
+    }
+
+    // eytzinger 为 false 时快照只保留有序数组，查找改用二分查找，省去构造 Eytzinger 数组的开销
+    FrozenRedBlackTree<Key, Value> freeze(boolean eytzinger) {
+        int n = distinctSize();
+        Object[] keys = new Object[n];
+        Object[] vals = new Object[n];
+        int[] counts = size() == n ? null : new int[n];
+        int i = 0;
+        Object[] stack = new Object[2 * (32 - Integer.numberOfLeadingZeros(nodes)) + 2];
+        int top = 0;
+        Node x = root;
+        while (x != null || top > 0) {
+            while (x != null) {
+                stack[top++] = x;
+                x = x.left;
+            }
+            @SuppressWarnings("unchecked")
+            Node y = (Node) stack[--top];
+            x = y.right;
+            if (!y.deleted) {
+                keys[i] = y.key;
+                vals[i] = y.val;
+                if (counts != null) {
+                    counts[i] = y.getCount();
+                }
+                i++;
+            }
+        }
+        return new FrozenRedBlackTree<>(keys, vals, counts, eytzinger);
+    }
+
+    /***************************************************************************
+     *  子树内容哈希与差异比较。
+     ***************************************************************************/
+
+    /**
+     * 开启子树内容哈希。开启时对已有节点做一次 O(n) 的计算，之后在插入、删除和旋转中增量维护。
+     * 子树哈希保存在扩展节点中：开启时把已有的普通节点逐个换成扩展节点，每个节点多占 16 字节。
+     * <p>
+     * 子树哈希是子树中每个键值对哈希（乘以重数）的和，与树的形状无关，
+     * 因此内容相同但插入历史不同的两棵树具有相同的哈希。
+     */
+    public void enableContentHash() {
+        if (!hashing) {
+            augment();
+            hashing = true;
+            rehash(root);
+        }
+    }
+
+    /**
+     * 返回整棵树的内容哈希，必要时先开启内容哈希。
+     *
+     * @return 内容哈希
+     */
+    public long contentHash() {
+        enableContentHash();
+        return hash(root);
+    }
+
+    // 后序遍历重新计算子树哈希
+    private void rehash(Node x) {
+        if (x == null) {
+            return;
+        }
+        rehash(x.left);
+        rehash(x.right);
+        update(x);
+    }
+
+    // 子树的内容哈希；null 的哈希为 0
+    private long hash(Node x) {
+        if (x == null) {
+            return 0;
+        }
+        return ((AugmentedNode<?, ?>) x).hash;
+    }
+
+    // 单个键值对的哈希，使用 SplitMix64 的混合函数打散
+    private long entryHash(Node x) {
+        // 先加上黄金比例常量，避免 0 被混合成 0 从而在求和中“消失”
+        long z = 31L * x.key.hashCode() + Objects.hashCode(x.val) + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * 返回两棵树中内容不同的键：只在一棵树中出现、值不同或重数不同的键，按升序排列。
+     * <p>
+     * 比较时从本树的根开始，如果本树某个子树覆盖的键区间在另一棵树中的哈希与子树哈希相同，
+     * 则跳过整个区间，因此代价约为 O(差异数量 · log² n)，而不是 O(n)。
+     * 本树会在需要时开启内容哈希；另一棵树必须已经开启，diff 不会改变它的维护方式。
+     *
+     * @param other 要比较的另一棵树
+     * @return 内容不同的键
+     * @throws IllegalArgumentException 如果 other 为 null
+     * @throws IllegalStateException    如果 other 没有开启内容哈希
+     */
+    public Iterable<Key> diff(RedBlackTree<Key, Value> other) {
+        if (other == null) {
+            throw new IllegalArgumentException("argument to diff() is null");
+        }
+        if (!other.hashing) {
+            throw new IllegalStateException("called diff() with a tree that has content hashing disabled");
+        }
+        enableContentHash();
+        Queue<Key> queue = new LinkedList<>();
+        diff(root, other, null, null, queue);
+        return queue;
+    }
+
+    // 比较本树中以 x 为根、键位于开区间 (lo, hi) 的子树与另一棵树的同一区间；null 表示无界
+    private void diff(Node x, RedBlackTree<Key, Value> other, Key lo, Key hi, Queue<Key> queue) {
+        if (hash(x) == other.rangeHash(lo, hi)) {
+            return;
+        }
+        if (x == null) {
+            // 这个区间在本树中为空，另一棵树中的键都是多出来的
+            other.keysBetween(other.root, lo, hi, queue);
+            return;
+        }
+        diff(x.left, other, lo, x.key, queue);
+        Node y = other.find(x.key);
+        if (x.deleted ? y != null : y == null || y.getCount() != x.getCount() || !Objects.equals(x.val, y.val)) {
+            queue.add(x.key);
         }
+        diff(x.right, other, x.key, hi, queue);
     }
 
-    // the smallest key in the subtree rooted at x greater than or equal to the given key
-    private Node ceiling(Node x, Key key) {
-        if (x == null) {
-            return null;
+    // 键位于开区间 (lo, hi) 内的键值对的哈希之和；null 表示无界
+    private long rangeHash(Key lo, Key hi) {
+        long below = hi == null ? hash(root) : prefixHash(hi, false);
+        long upTo = lo == null ? 0 : prefixHash(lo, true);
+        return below - upTo;
+    }
+
+    // 键小于 key（inclusive 为 true 时小于等于）的所有键值对的哈希之和
+    private long prefixHash(Key key, boolean inclusive) {
+        long h = 0;
+        Node x = root;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if (cmp < 0) {
+                x = x.left;
+            } else if (cmp > 0) {
+                h += hash(x.left) + weight(x) * entryHash(x);
+                x = x.right;
+            } else {
+                h += hash(x.left);
+                if (inclusive) {
+                    h += weight(x) * entryHash(x);
+                }
+                return h;
+            }
         }
-        int cmp = key.compareTo(x.key);
-        if (cmp == 0) {
-            return x;
+        return h;
+    }
+
+    // 把开区间 (lo, hi) 内的键按顺序加入队列；null 表示无界
+    private void keysBetween(Node x, Key lo, Key hi, Queue<Key> queue) {
+        if (x == null || x.size == 0) {
+            return;
         }
-        if (cmp > 0) {
-            return ceiling(x.right, key);
+        boolean aboveLo = lo == null || lo.compareTo(x.key) < 0;
+        boolean belowHi = hi == null || hi.compareTo(x.key) > 0;
+        if (aboveLo) {
+            keysBetween(x.left, lo, hi, queue);
         }
-        Node t = ceiling(x.left, key);
-        if (t != null) {
-            return t;
-        } else {
-            return x;
+        if (aboveLo && belowHi && !x.deleted) {
+            queue.add(x.key);
+        }
+        if (belowHi) {
+            keysBetween(x.right, lo, hi, queue);
         }
     }
 
+    /***************************************************************************
+     *  延迟删除与压缩。
+     ***************************************************************************/
+
     /**
-     * Return the kth smallest key in the symbol table.
+     * 开启延迟删除模式。此后 delete、deleteMin、deleteMax 只把节点标记为墓碑并更新路径上的计数，
+     * 代价为 O(log n)，不做任何旋转或颜色调整；查询、遍历以及 rank/select 都会跳过墓碑。
+     * 墓碑在 {@link #compact()} 时统一移除。
      *
-     * @param k the order statistic
-     * @return the {@code k}th smallest key in the symbol table
-     * @throws IllegalArgumentException unless {@code k} is between 0 and
-     *                                  <em>n</em>–1
+     * @param threshold 墓碑数量占节点总数的比例超过该值时，{@link #compactIfNeeded()} 才会压缩
+     * @throws IllegalArgumentException 如果阈值不在 (0, 1] 之间
      */
-    public Key select(int k) {
-        if (k < 0 || k >= size()) {
-            throw new IllegalArgumentException("called select() with invalid argument: " + k);
+    public void enableLazyDelete(double threshold) {
+        if (!(threshold > 0 && threshold <= 1)) {
+            throw new IllegalArgumentException("compaction threshold must be in (0, 1]: " + threshold);
         }
-        Node x = select(root, k);
-        return x.key;
+        lazyDelete = true;
+        compactThreshold = threshold;
     }
 
-    // the key of rank k in the subtree rooted at x
-    private Node select(Node x, int k) {
-        // assert x != null;
-        // assert k >= 0 && k < size(x);
-        int t = size(x.left);
-        if (t > k) {
-            return select(x.left, k);
-        } else if (t < k) {
-            return select(x.right, k - t - 1);
-        } else {
-            return x;
-        }
+    /**
+     * 关闭延迟删除模式，并立即压缩掉所有墓碑。
+     */
+    public void disableLazyDelete() {
+        stopBackgroundCompaction();
+        compact();
+        lazyDelete = false;
     }
 
     /**
-     * Return the number of keys in the symbol table strictly less than {@code key}.
+     * 返回墓碑节点的数量。
      *
-     * @param key the key
-     * @return the number of keys in the symbol table strictly less than {@code key}
-     * @throws IllegalArgumentException if {@code key} is {@code null}
+     * @return 墓碑节点的数量
      */
-    public int rank(Key key) {
-        if (key == null) {
-            throw new IllegalArgumentException("argument to rank() is null");
-        }
-        return rank(key, root);
+    public int tombstones() {
+        return tombstones;
     }
 
-    // number of keys less than key in the subtree rooted at x
-    private int rank(Key key, Node x) {
-        if (x == null) {
-            return 0;
-        }
-        int cmp = key.compareTo(x.key);
-        if (cmp < 0) {
-            return rank(key, x.left);
-        } else if (cmp > 0) {
-            return 1 + size(x.left) + rank(key, x.right);
-        } else {
-            return size(x.left);
+    /**
+     * 如果墓碑比例超过阈值，则压缩树。
+     *
+     * @return 如果执行了压缩则返回 true
+     */
+    public boolean compactIfNeeded() {
+        if (tombstones == 0 || tombstones <= compactThreshold * nodes) {
+            return false;
         }
+        compact();
+        return true;
     }
 
     /**
-     * Returns all keys in the symbol table as an {@code Iterable}.
-     * To iterate over all of the keys in the symbol table named {@code st},
-     * use the foreach notation: {@code for (Key key : st.keys())}.
-     *
-     * @return all keys in the symbol table as an {@code Iterable}
+     * 移除所有墓碑：按中序收集存活节点，再在线性时间内用它们重建一棵平衡的红黑树。
+     * 重建时复用原有的节点对象，只分配一个临时数组。
      */
-    public Iterable<Key> keys() {
-        if (isEmpty()) {
-            return new LinkedList<>();
+    public void compact() {
+        if (tombstones == 0) {
+            return;
         }
-        return keys(min(), max());
+        Object[] live = liveNodes();
+        root = build(live, 0, live.length);
+        nodes = live.length;
+        tombstones = 0;
     }
 
-    /***************************************************************************
-     *  Range count and range search.
-     ***************************************************************************/
+    // 按中序收集所有存活节点
+    private Object[] liveNodes() {
+        Object[] live = new Object[nodes - tombstones];
+        int n = 0;
+        // 迭代中序遍历，避免深度递归；红黑树的高度不超过 2 log2(n + 1)
+        Object[] stack = new Object[2 * (32 - Integer.numberOfLeadingZeros(nodes)) + 2];
+        int top = 0;
+        Node x = root;
+        while (x != null || top > 0) {
+            while (x != null) {
+                stack[top++] = x;
+                x = x.left;
+            }
+            @SuppressWarnings("unchecked")
+            Node y = (Node) stack[--top];
+            stack[top] = null;
+            x = y.right;
+            if (!y.deleted) {
+                live[n++] = y;
+            }
+        }
+        return live;
+    }
 
     /**
-     * Returns all keys in the symbol table in the given range,
-     * as an {@code Iterable}.
+     * 在后台线程中按固定周期调用 {@link #compactIfNeeded()}。压缩在 {@code this} 上同步执行，
+     * 因此开启后台压缩时，调用方也必须在 {@code this} 上同步对树的所有访问。
      *
-     * @param lo minimum endpoint
-     * @param hi maximum endpoint
-     * @return all keys in the sybol table between {@code lo}
-     * (inclusive) and {@code hi} (inclusive) as an {@code Iterable}
-     * @throws IllegalArgumentException if either {@code lo} or {@code hi}
-     *                                  is {@code null}
+     * @param period 检查周期
+     * @param unit   周期的时间单位
      */
-    public Iterable<Key> keys(Key lo, Key hi) {
-        if (lo == null) {
-            throw new IllegalArgumentException("first argument to keys() is null");
-        }
-        if (hi == null) {
-            throw new IllegalArgumentException("second argument to keys() is null");
-        }
-
-        Queue<Key> queue = new LinkedList<>();
-        // if (isEmpty() || lo.compareTo(hi) > 0) return queue;
-        keys(root, queue, lo, hi);
-        return queue;
+    public synchronized void startBackgroundCompaction(long period, TimeUnit unit) {
+        stopBackgroundCompaction();
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "red-black-tree-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            synchronized (RedBlackTree.this) {
+                compactIfNeeded();
+            }
+        }, period, period, unit);
     }
 
-    // add the keys between lo and hi in the subtree rooted at x
-    // to the queue
-    private void keys(Node x, Queue<Key> queue, Key lo, Key hi) {
-        if (x == null) {
-            return;
-        }
-        int cmplo = lo.compareTo(x.key);
-        int cmphi = hi.compareTo(x.key);
-        if (cmplo < 0) {
-            keys(x.left, queue, lo, hi);
-        }
-        if (cmplo <= 0 && cmphi >= 0) {
-            queue.add(x.key);
+    /**
+     * 停止后台压缩线程（如果已启动）。
+     */
+    public synchronized void stopBackgroundCompaction() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
         }
-        if (cmphi > 0) {
-            keys(x.right, queue, lo, hi);
+    }
+
+    /**
+     * 用有序数组 a[lo, hi) 中的节点构造一棵合法的左倾红黑树，返回黑色的根节点。
+     *
+     * @param a  按键升序排列的节点
+     * @param lo 起始下标（含）
+     * @param hi 结束下标（不含）
+     * @return 新树的根节点
+     */
+    private Node build(Object[] a, int lo, int hi) {
+        Node x = build(a, lo, hi, 31 - Integer.numberOfLeadingZeros(hi - lo + 1));
+        if (x != null) {
+            x.color = BLACK;
         }
+        return x;
     }
 
     /**
-     * Returns the number of keys in the symbol table in the given range.
+     * 用 a[lo, hi) 构造一棵黑高为 black 的左倾红黑树（对应一棵高度为 black 的 2-3 树）。
+     * <p>
+     * 高度为 b 的 2-3 树可以容纳 2^b - 1 到 3^b - 1 个键。节点数能均分给两个子树时根是 2-节点，
+     * 否则根是 3-节点（一个黑色节点加上红色的左子节点），把剩余的键均分给三个子树。
      *
-     * @param lo minimum endpoint
-     * @param hi maximum endpoint
-     * @return the number of keys in the sybol table between {@code lo}
-     * (inclusive) and {@code hi} (inclusive)
-     * @throws IllegalArgumentException if either {@code lo} or {@code hi}
-     *                                  is {@code null}
+     * @param a     按键升序排列的节点
+     * @param lo    起始下标（含）
+     * @param hi    结束下标（不含）
+     * @param black 子树的黑高
+     * @return 子树的根节点（黑色）
      */
-    public int size(Key lo, Key hi) {
-        if (lo == null) {
-            throw new IllegalArgumentException("first argument to size() is null");
+    @SuppressWarnings("unchecked")
+    private Node build(Object[] a, int lo, int hi, int black) {
+        int n = hi - lo;
+        if (n == 0) {
+            return null;
         }
-        if (hi == null) {
-            throw new IllegalArgumentException("second argument to size() is null");
+        long childMax = 1;
+        for (int i = 1; i < black; i++) {
+            childMax *= 3;
         }
+        childMax -= 1;  // 黑高为 black - 1 的子树最多容纳的键数
 
-        if (lo.compareTo(hi) > 0) {
-            return 0;
-        }
-        if (contains(hi)) {
-            return rank(hi) - rank(lo) + 1;
-        } else {
-            return rank(hi) - rank(lo);
+        if (n - 1 <= 2 * childMax) {
+            int mid = lo + (n - 1) / 2;
+            Node x = (Node) a[mid];
+            x.left = build(a, lo, mid, black - 1);
+            x.right = build(a, mid + 1, hi, black - 1);
+            x.color = BLACK;
+            update(x);
+            return x;
         }
+
+        int rest = n - 2;
+        int first = rest / 3;
+        int second = (rest - first) / 2;
+        Node l = (Node) a[lo + first];
+        Node r = (Node) a[lo + first + 1 + second];
+        l.left = build(a, lo, lo + first, black - 1);
+        l.right = build(a, lo + first + 1, lo + first + 1 + second, black - 1);
+        l.color = RED;
+        update(l);
+        r.left = l;
+        r.right = build(a, lo + first + second + 2, hi, black - 1);
+        r.color = BLACK;
+        update(r);
+        return r;
     }
 
     /***************************************************************************
      *  Check integrity of red-black tree data structure.
      ***************************************************************************/
+
+    /**
+     * 检查红黑树的所有不变式：对称顺序、子树计数（以及内容哈希）、没有右倾的红链接、
+     * 没有连续的红链接、所有根到叶子路径上的黑链接数量相同。
+     * <p>
+     * 所有不变式在一次迭代遍历中完成检查，不使用递归，因此树再大也不会栈溢出。
+     * 由于子树计数在每个节点上都是一致的，rank 与 select 的一致性也随之成立，不需要额外检查。
+     *
+     * @return 如果所有不变式都成立则返回 true
+     */
     public boolean check() {
-//        if (!isBST())            StdOut.println("Not in symmetric order");
-//        if (!isSizeConsistent()) StdOut.println("Subtree counts not consistent");
-//        if (!isRankConsistent()) StdOut.println("Ranks not consistent");
-//        if (!is23())             StdOut.println("Not a 2-3 tree");
-//        if (!isBalanced())       StdOut.println("Not balanced");
-        return isBST() && isSizeConsistent() && isRankConsistent() && is23() && isBalanced();
+        return validate(root, null, null, blackHeight(root));
     }
 
-    // does this binary tree satisfy symmetric order?
-    // Note: this test also ensures that data structure is a binary tree since order is strict
-    private boolean isBST() {
-        return isBST(root, null, null);
+    /**
+     * 设置抽样检查的概率。每次修改树之后以该概率调用一次 {@link #checkSample()}，
+     * 发现不变式被破坏时抛出 {@link IllegalStateException}。设为 0 可以关闭抽样检查。
+     *
+     * @param rate 每次修改后执行抽样检查的概率，范围为 [0, 1]
+     * @throws IllegalArgumentException 如果概率不在 [0, 1] 之间
+     */
+    public void setCheckSampleRate(double rate) {
+        if (!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException("sample rate must be in [0, 1]: " + rate);
+        }
+        checkSampleRate = rate;
     }
 
-    // is the tree rooted at x a BST with all keys strictly between min and max
-    // (if min or max is null, treat as empty constraint)
-    // Credit: Bob Dondero's elegant solution
-    private boolean isBST(Node x, Key min, Key max) {
-        if (x == null) {
-            return true;
-        }
-        if (min != null && x.key.compareTo(min) <= 0) {
-            return false;
-        }
-        if (max != null && x.key.compareTo(max) >= 0) {
-            return false;
+    /**
+     * 抽样检查不变式：随机选择一条根到叶子的路径（按子树大小加权，每个节点被选中的概率相同）逐个检查路径上的节点，
+     * 并完整检查路径上最大的、节点数不超过 {@value #SAMPLE_SUBTREE_LIMIT} 的子树。
+     * 代价为 O(log n + {@value #SAMPLE_SUBTREE_LIMIT})，适合在生产环境中持续开启。
+     *
+     * @return 如果抽样到的部分满足所有不变式则返回 true
+     */
+    public boolean checkSample() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int black = blackHeight(root);
+        Key lo = null, hi = null;
+        Node x = root;
+        while (x != null) {
+            // 子树足够小时完整检查，然后结束
+            if (x.size <= SAMPLE_SUBTREE_LIMIT) {
+                return validate(x, lo, hi, black);
+            }
+            if (!validNode(x, lo, hi)) {
+                return false;
+            }
+            if (!isRed(x)) {
+                black--;
+            }
+            int r = random.nextInt(Math.max(1, x.size));
+            if (r < size(x.left)) {
+                hi = x.key;
+                x = x.left;
+            } else {
+                lo = x.key;
+                x = x.right;
+            }
         }
-        return isBST(x.left, min, x.key) && isBST(x.right, x.key, max);
+        return black == 0;
     }
 
-    // are the size fields correct?
-    private boolean isSizeConsistent() {
-        return isSizeConsistent(root);
+    // 修改树之后按设定的概率执行抽样检查
+    private void sampleCheck() {
+        if (checkSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < checkSampleRate && !checkSample()) {
+            throw new IllegalStateException("red-black tree invariant violated");
+        }
     }
 
-    private boolean isSizeConsistent(Node x) {
-        if (x == null) {
-            return true;
-        }
-        if (x.size != size(x.left) + size(x.right) + 1) {
-            return false;
+    // 从 x 沿最左路径统计黑色节点的数量
+    private int blackHeight(Node x) {
+        int black = 0;
+        while (x != null) {
+            if (!isRed(x)) {
+                black++;
+            }
+            x = x.left;
         }
-        return isSizeConsistent(x.left) && isSizeConsistent(x.right);
+        return black;
     }
 
-    // check that ranks are consistent
-    private boolean isRankConsistent() {
-        for (int i = 0; i < size(); i++) {
-            if (i != rank(select(i))) {
+    /**
+     * 迭代地检查以 top 为根的子树：所有键都严格位于 (lo, hi) 之间（null 表示无界），
+     * 节点本身的不变式成立，并且从 top 到每个空链接的路径上恰好有 black 个黑色节点。
+     *
+     * @param top   子树的根
+     * @param lo    键的下界（不含）
+     * @param hi    键的上界（不含）
+     * @param black 期望的黑高
+     * @return 如果子树满足所有不变式则返回 true
+     */
+    @SuppressWarnings("unchecked")
+    private boolean validate(Node top, Key lo, Key hi, int black) {
+        if (top == null) {
+            return black == 0;
+        }
+        int capacity = 64;
+        // 用并行数组保存待检查的节点及其键区间和剩余黑高，代替递归调用栈
+        Object[] nodes = new Object[capacity];
+        Object[] los = new Object[capacity];
+        Object[] his = new Object[capacity];
+        int[] blacks = new int[capacity];
+        int n = 0;
+        nodes[n] = top;
+        los[n] = lo;
+        his[n] = hi;
+        blacks[n] = black;
+        n++;
+
+        while (n > 0) {
+            n--;
+            Node x = (Node) nodes[n];
+            Key min = (Key) los[n];
+            Key max = (Key) his[n];
+            int remaining = blacks[n];
+            nodes[n] = null;
+
+            if (!validNode(x, min, max)) {
                 return false;
             }
-        }
-        for (Key key : keys()) {
-            if (key.compareTo(select(rank(key))) != 0) {
+            if (!isRed(x)) {
+                remaining--;
+            }
+            if ((x.left == null || x.right == null) && remaining != 0) {
                 return false;
             }
+
+            if (n + 2 > nodes.length) {
+                capacity = nodes.length * 2;
+                nodes = Arrays.copyOf(nodes, capacity);
+                los = Arrays.copyOf(los, capacity);
+                his = Arrays.copyOf(his, capacity);
+                blacks = Arrays.copyOf(blacks, capacity);
+            }
+            if (x.right != null) {
+                nodes[n] = x.right;
+                los[n] = x.key;
+                his[n] = max;
+                blacks[n] = remaining;
+                n++;
+            }
+            if (x.left != null) {
+                nodes[n] = x.left;
+                los[n] = min;
+                his[n] = x.key;
+                blacks[n] = remaining;
+                n++;
+            }
         }
         return true;
     }
 
-    // Does the tree have no red right links, and at most one (left)
-    // red links in a row on any path?
-    private boolean is23() {
-        return is23(root);
-    }
-
-    private boolean is23(Node x) {
-        if (x == null) {
-            return true;
-        }
-        if (isRed(x.right)) {
+    /**
+     * 检查单个节点的局部不变式：键严格位于 (lo, hi) 之间，子树计数与内容哈希与子节点一致，
+     * 没有右倾的红链接，也没有连续的红链接。
+     *
+     * @param x  要检查的节点
+     * @param lo 键的下界（不含），null 表示无界
+     * @param hi 键的上界（不含），null 表示无界
+     * @return 如果局部不变式成立则返回 true
+     */
+    private boolean validNode(Node x, Key lo, Key hi) {
+        if (lo != null && x.key.compareTo(lo) <= 0) {
             return false;
         }
-        if (x != root && isRed(x) && isRed(x.left)) {
+        if (hi != null && x.key.compareTo(hi) >= 0) {
             return false;
         }
-        return is23(x.left) && is23(x.right);
-    }
-
-    // do all paths from root to leaf have same number of black edges?
-    private boolean isBalanced() {
-        int black = 0;     // number of black links on path from root to min
-        Node x = root;
-        while (x != null) {
-            if (!isRed(x)) {
-                black++;
-            }
-            x = x.left;
+        if (x.getCount() < 1 || x.size != size(x.left) + size(x.right) + weight(x)) {
+            return false;
         }
-        return isBalanced(root, black);
-    }
-
-    // does every path from the root to a leaf have the given number of black links?
-    private boolean isBalanced(Node x, int black) {
-        if (x == null) {
-            return black == 0;
+        if (hashing && hash(x) != hash(x.left) + hash(x.right) + weight(x) * entryHash(x)) {
+            return false;
         }
-        if (!isRed(x)) {
-            black--;
+        if (isRed(x.right)) {
+            return false;
         }
-        return isBalanced(x.left, black) && isBalanced(x.right, black);
+        return x == root || !isRed(x) || !isRed(x.left);
     }
 
     // 节点数据类型
@@ -888,7 +3309,8 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         private Value val;         // 关联的数据
         private Node left, right;  // 指向左子树和右子树的链接
         private boolean color;     // 父链接的颜色
-        private int size;          // 子树的节点计数
+        private boolean deleted;   // 是否为延迟删除留下的墓碑
+        private int size;          // 子树的节点计数（多重集模式下为出现次数之和）
 
         // 构造函数
         // 初始化一个新的节点，指定键、值、颜色和子树计数
@@ -915,8 +3337,8 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
             // 强制转换为 Node 类型
             Node node = (Node) o;
 
-            // 比较颜色是否相等
-            if (color != node.color) {
+            // 比较颜色、重数和墓碑标记是否相等
+            if (color != node.color || getCount() != node.getCount() || deleted != node.deleted) {
                 return false;
             }
             // 比较键是否相等
@@ -934,6 +3356,7 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
             int result = key != null ? key.hashCode() : 0; // 计算键的哈希码
             result = 31 * result + (val != null ? val.hashCode() : 0); // 计算值的哈希码
             result = 31 * result + (color ? 1 : 0); // 计算颜色的哈希码
+            result = 31 * result + getCount(); // 计算重数的哈希码
             return result;
         }
 
@@ -948,6 +3371,7 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
 //                ", right=" + right + // 输出右子树
                     ", color=" + color + // 输出颜色
                     ", size=" + size + // 输出子树计数
+                    ", count=" + getCount() + // 输出重数
                     '}'; // 结束括号
         }
 
@@ -1025,6 +3449,45 @@ public class RedBlackTree<Key extends Comparable<Key>, Value> {
         public void setSize(int size) {
             this.size = size;
         }
+
+        // 普通节点的键只出现一次
+        public int getCount() {
+            return 1;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        public void setCount(int count) {
+            if (count != 1) {
+                throw new UnsupportedOperationException("only multiset nodes can hold a key more than once");
+            }
+        }
+    }
+
+    /**
+     * 扩展节点：多重集、内容哈希或自适应模式需要的字段。只有开启了这些功能的树才创建扩展节点，
+     * 普通的树不为它们付出内存。声明为静态嵌套类，通过父类共用外部类引用，不再单独持有一份。
+     */
+    private static final class AugmentedNode<Key extends Comparable<Key>, Value> extends RedBlackTree<Key, Value>.Node {
+        private int count = 1;     // 键的重数
+        private long hash;         // 子树的内容哈希（开启内容哈希时维护）
+        private int hits;          // 自适应模式下的读取次数，每次重建后减半
+
+        AugmentedNode(RedBlackTree<Key, Value> tree, Key key, Value val) {
+            tree.super(key, val, RED, 1);
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public void setCount(int count) {
+            this.count = count;
+        }
     }
 
 
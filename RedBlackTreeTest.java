@@ -2,7 +2,15 @@ package com.pseudoyu.tree.rb;
 
 import org.junit.Test;
 
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class RedBlackTreeTest {
 
@@ -76,6 +84,491 @@ public class RedBlackTreeTest {
         return;
     }
 
+    @Test
+    public void multisetCountsDuplicates() {
+        RedBlackTree<Integer, String> tree = new RedBlackTree<>(true);
+        for (int i = 0; i < 100; i++) {
+            tree.put(i % 10, "v" + i);
+        }
+        assertEquals(100, tree.size());
+        assertEquals(10, tree.distinctSize());
+        assertEquals(10, tree.count(3));
+        assertEquals("v93", tree.get(3));
+        assertEquals(30, tree.rank(3));
+        assertEquals(Integer.valueOf(3), tree.select(30));
+        assertEquals(Integer.valueOf(3), tree.select(39));
+        assertEquals(Integer.valueOf(4), tree.select(40));
+        assertEquals(30, tree.size(2, 4));
+
+        tree.delete(3);
+        assertEquals(9, tree.count(3));
+        assertEquals(99, tree.size());
+        tree.deleteMin();
+        assertEquals(9, tree.count(0));
+        for (int i = 0; i < 9; i++) {
+            tree.delete(3);
+        }
+        assertEquals(0, tree.count(3));
+        assertEquals(9, tree.distinctSize());
+        assertTrue(tree.check());
+    }
+
+    @Test
+    public void readModifyWriteOperations() {
+        RedBlackTree<String, Integer> tree = new RedBlackTree<>();
+        for (String word : "a b a c b a".split(" ")) {
+            tree.merge(word, 1, Integer::sum);
+        }
+        assertEquals(Integer.valueOf(3), tree.get("a"));
+        assertEquals(Integer.valueOf(2), tree.get("b"));
+        assertEquals(Integer.valueOf(0), tree.getOrDefault("z", 0));
+
+        assertEquals(Integer.valueOf(1), tree.putIfAbsent("c", 9));
+        assertNull(tree.putIfAbsent("d", 4));
+        assertEquals(Integer.valueOf(4), tree.replace("d", 5));
+        assertNull(tree.replace("e", 5));
+        assertEquals(Integer.valueOf(7), tree.computeIfAbsent("e", k -> 7));
+        assertEquals(Integer.valueOf(7), tree.computeIfAbsent("e", k -> 8));
+        assertNull(tree.computeIfPresent("f", (k, v) -> v + 1));
+        assertEquals(Integer.valueOf(6), tree.computeIfPresent("d", (k, v) -> v + 1));
+
+        assertNull(tree.compute("a", (k, v) -> null));
+        assertNull(tree.get("a"));
+        assertNull(tree.merge("b", 1, (a, b) -> null));
+        assertEquals(3, tree.size());
+        assertEquals(3, tree.distinctSize());
+        assertTrue(tree.check());
+    }
+
+    @Test
+    public void diffIgnoresShapeAndFindsChanges() {
+        RedBlackTree<Integer, Integer> a = new RedBlackTree<>();
+        RedBlackTree<Integer, Integer> b = new RedBlackTree<>();
+        a.enableContentHash();
+        for (int i = 0; i < 5000; i++) {
+            a.put(i, i);
+            b.put(4999 - i, 4999 - i);
+        }
+        assertEquals(a.contentHash(), b.contentHash());
+        assertTrue(!a.diff(b).iterator().hasNext());
+
+        a.put(10, -1);
+        a.delete(20);
+        b.put(6000, 6000);
+        b.replace(3000, 0);
+        a.merge(4000, 1, Integer::sum);
+        StringBuilder keys = new StringBuilder();
+        for (Integer key : a.diff(b)) {
+            keys.append(key).append(' ');
+        }
+        assertEquals("10 20 3000 4000 6000 ", keys.toString());
+        assertTrue(a.check());
+        assertTrue(b.check());
+
+        RedBlackTree<Integer, Integer> plain = new RedBlackTree<>();
+        try {
+            a.diff(plain);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("called diff() with a tree that has content hashing disabled", e.getMessage());
+        }
+    }
+
+    @Test
+    public void sampledCheckDetectsCorruption() {
+        RedBlackTree<Integer, Integer> tree = new RedBlackTree<>();
+        tree.setCheckSampleRate(1);
+        for (int i = 0; i < 20000; i++) {
+            tree.put(i, i);
+        }
+        for (int i = 0; i < 20000; i += 2) {
+            tree.delete(i);
+        }
+        assertTrue(tree.check());
+        assertTrue(tree.checkSample());
+
+        RedBlackTree.Node root = tree.getRoot();
+        root.setSize(root.getSize() + 1);
+        assertFalse(tree.check());
+        assertFalse(tree.checkSample());
+        root.setSize(root.getSize() - 1);
+
+        RedBlackTree.Node node = root;
+        while (node.getLeft() != null) {
+            node = node.getLeft();
+        }
+        node.setColor(!node.getColor());
+        assertFalse(tree.check());
+    }
+
+    @Test
+    public void lazyDeleteSkipsTombstonesUntilCompaction() {
+        RedBlackTree<Integer, Integer> tree = new RedBlackTree<>();
+        tree.enableLazyDelete(0.25);
+        for (int i = 0; i < 1000; i++) {
+            tree.put(i, i);
+        }
+        int height = tree.height();
+        for (int i = 0; i < 1000; i += 2) {
+            tree.delete(i);
+        }
+        assertEquals(height, tree.height());
+        assertEquals(500, tree.size());
+        assertEquals(500, tree.tombstones());
+        assertNull(tree.get(10));
+        assertEquals(Integer.valueOf(1), tree.min());
+        assertEquals(Integer.valueOf(9), tree.floor(10));
+        assertEquals(Integer.valueOf(11), tree.ceiling(10));
+        assertEquals(5, tree.rank(10));
+        assertEquals(Integer.valueOf(11), tree.select(5));
+
+        tree.put(10, 10);
+        assertEquals(499, tree.tombstones());
+        assertEquals(Integer.valueOf(10), tree.select(5));
+        assertTrue(tree.check());
+
+        assertTrue(tree.compactIfNeeded());
+        assertEquals(0, tree.tombstones());
+        assertEquals(501, tree.size());
+        assertTrue(tree.check());
+    }
+
+    @Test
+    public void secondaryIndexFollowsValueChanges() {
+        RedBlackTree<String, Integer> scores = new RedBlackTree<>();
+        scores.put("a", 30);
+        scores.put("b", 10);
+        SecondaryIndex<Integer, String, Integer> byScore = scores.addIndex(v -> v);
+        scores.put("c", 20);
+        scores.put("d", 20);
+
+        assertEquals("b", byScore.min());
+        assertEquals("a", byScore.max());
+        assertEquals("c", byScore.ceiling(15));
+        assertEquals("d", byScore.floor(25));
+        assertEquals(1, byScore.rank(20));
+        assertEquals(2, byScore.size(20, 20));
+
+        scores.put("b", 40);
+        scores.merge("c", 5, Integer::sum);
+        scores.delete("a");
+        assertEquals(3, byScore.size());
+        StringBuilder order = new StringBuilder();
+        for (String key : byScore.keys()) {
+            order.append(key);
+        }
+        assertEquals("dcb", order.toString());
+        assertEquals("b", byScore.select(2));
+        assertNull(byScore.ceiling(41));
+
+        scores.enableLazyDelete(0.5);
+        scores.deleteMin();
+        assertEquals(2, byScore.size());
+        assertEquals("d", byScore.min());
+        assertEquals("c", byScore.max());
+    }
+
+    @Test
+    public void hotKeyCacheStaysConsistentAcrossDeletes() {
+        RedBlackTree<Integer, Integer> tree = new RedBlackTree<>();
+        tree.enableHotKeyCache(64);
+        for (int i = 0; i < 1000; i++) {
+            tree.put(i, i);
+        }
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 16; i++) {
+                assertEquals(Integer.valueOf(i), tree.get(i));
+            }
+        }
+        assertTrue(tree.hotKeyCacheHitRate() > 0.8);
+
+        // 删除会把后继的键值对搬到别的节点中，缓存不能返回已摘除节点上的旧值
+        for (int i = 0; i < 16; i += 2) {
+            tree.delete(i);
+            tree.put(i + 1, -(i + 1));
+        }
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(-i), tree.get(i));
+        }
+        assertEquals(176, tree.hotKeyCacheHits() + tree.hotKeyCacheMisses());
+    }
+
+    @Test
+    public void memoryLimitRejectsOrEvicts() {
+        RedBlackTree<Integer, String> tree = new RedBlackTree<>();
+        for (int i = 0; i < 1000; i++) {
+            tree.put(i, "value" + i);
+        }
+        MemoryStats stats = tree.memoryStats(100);
+        assertEquals(1000, stats.nodes());
+        assertEquals(100, stats.sampled());
+        assertEquals(1000 * stats.bytesPerNode(), stats.nodeBytes());
+        assertTrue(stats.keyBytes() > 0 && stats.valueBytes() > stats.keyBytes());
+        // 只有开启了需要额外字段的功能时节点才变大
+        long plain = stats.bytesPerNode();
+        assertTrue(new RedBlackTree<Integer, String>(true).memoryStats(0).bytesPerNode() > plain);
+        RedBlackTree<Integer, String> hashed = new RedBlackTree<>();
+        hashed.put(1, "a");
+        hashed.enableContentHash();
+        assertTrue(hashed.memoryStats(0).bytesPerNode() > plain);
+        assertTrue(hashed.check());
+
+        long limit = stats.totalBytes();
+        tree.setMemoryLimit(limit, RedBlackTree.MemoryPolicy.REJECT);
+        int inserted = 0;
+        try {
+            for (int i = 1000; i < 2000; i++) {
+                tree.put(i, "value" + i);
+                inserted++;
+            }
+        } catch (IllegalStateException expected) {
+            // 达到上限
+        }
+        assertTrue(inserted < 100);
+        tree.put(0, "updated");  // 更新已有的键不受上限影响
+        // 不会插入新键的调用不受上限影响
+        assertNull(tree.computeIfPresent(5000, (k, v) -> v + "!"));
+        assertNull(tree.replace(5000, "x"));
+        assertNull(tree.compute(5000, (k, v) -> null));
+
+        tree.setMemoryLimit(limit, RedBlackTree.MemoryPolicy.EVICT);
+        for (int i = 2000; i < 3000; i++) {
+            tree.put(i, "value" + i);
+        }
+        assertTrue(tree.size() <= 1000 + inserted);
+        assertTrue(tree.contains(2999));
+        assertFalse(tree.contains(0));
+        assertTrue(tree.check());
+
+        int size = tree.size();
+        assertNull(tree.computeIfPresent(-1, (k, v) -> v));
+        assertEquals(size, tree.size());
+        assertTrue(tree.contains(tree.min()));
+
+        // 延迟删除模式下逐出直接摘除节点，墓碑也会被回收
+        tree.enableLazyDelete(0.5);
+        tree.delete(2999);
+        assertEquals(1, tree.tombstones());
+        for (int i = 3000; i < 4000; i++) {
+            tree.put(i, "value" + i);
+        }
+        assertTrue(tree.size() <= size + 1);
+        assertTrue(tree.contains(3999));
+        assertTrue(tree.check());
+    }
+
+    @Test
+    public void deleteRangeDetachesWholeSubtrees() {
+        RedBlackTree<Integer, Integer> tree = new RedBlackTree<>();
+        for (int i = 0; i < 10000; i++) {
+            tree.put(i, i);
+        }
+        assertEquals(4001, tree.deleteRange(3000, 7000));
+        assertTrue(tree.check());
+        assertEquals(5999, tree.size());
+        assertEquals(Integer.valueOf(2999), tree.floor(5000));
+        assertEquals(Integer.valueOf(7001), tree.ceiling(5000));
+        assertEquals(0, tree.deleteRange(3000, 7000));
+
+        assertEquals(1000, tree.deleteBelow(1000));
+        assertEquals(999, tree.deleteAbove(9000));
+        assertTrue(tree.check());
+        assertEquals(Integer.valueOf(1000), tree.min());
+        assertEquals(Integer.valueOf(9000), tree.max());
+        assertEquals(4000, tree.size());
+        assertEquals(4000, tree.distinctSize());
+
+        tree.put(5000, 5000);
+        assertEquals(2, tree.rank(1002));
+        assertEquals(Integer.valueOf(5000), tree.select(2000));
+        assertTrue(tree.check());
+    }
+
+    @Test
+    public void sampleDrawsDistinctRanksInOrder() {
+        RedBlackTree<Integer, Integer> tree = new RedBlackTree<>();
+        for (int i = 0; i < 10000; i++) {
+            tree.put(i, i);
+        }
+        int count = 0;
+        int last = -1;
+        for (Integer key : tree.sample(100)) {
+            assertTrue(key > last);
+            last = key;
+            count++;
+        }
+        assertEquals(100, count);
+
+        count = 0;
+        for (Integer key : tree.sample(2000, 2999, 999)) {
+            assertTrue(key >= 2000 && key <= 2999);
+            count++;
+        }
+        assertEquals(999, count);
+
+        StringBuilder all = new StringBuilder();
+        for (Integer key : tree.sample(5, 9, 10)) {
+            all.append(key);
+        }
+        assertEquals("56789", all.toString());
+    }
+
+    @Test
+    public void nearestExpandsOutwardFromProbe() {
+        RedBlackTree<Integer, Integer> tree = new RedBlackTree<>();
+        for (int i = 0; i <= 100; i += 10) {
+            tree.put(i, i);
+        }
+        tree.enableLazyDelete(1.0);
+        tree.delete(40);
+
+        StringBuilder near = new StringBuilder();
+        for (Integer key : tree.nearest(42, 4, (probe, key) -> Math.abs(probe - key))) {
+            near.append(key).append(' ');
+        }
+        assertEquals("50 30 60 20 ", near.toString());
+
+        StringBuilder lower = new StringBuilder();
+        for (Integer key : tree.lowerK(50, 3)) {
+            lower.append(key).append(' ');
+        }
+        assertEquals("30 20 10 ", lower.toString());
+
+        StringBuilder higher = new StringBuilder();
+        for (Integer key : tree.higherK(80, 5)) {
+            higher.append(key).append(' ');
+        }
+        assertEquals("90 100 ", higher.toString());
+    }
+
+    @Test
+    public void adaptiveRestructureLiftsHotKeys() {
+        RedBlackTree<Integer, Integer> tree = new RedBlackTree<>();
+        for (int i = 0; i < 10000; i++) {
+            tree.put(i, i);
+        }
+        int before = tree.depth(1234);
+        assertTrue(before > 5);
+
+        tree.enableAdaptive(5000);
+        for (int i = 0; i < 4999; i++) {
+            tree.get(i % 2 == 0 ? 1234 : i);
+        }
+        assertFalse(tree.restructureIfNeeded());
+        tree.get(1234);
+        assertEquals(before, tree.depth(1234));  // 读取不改变树的形状
+        assertTrue(tree.restructureIfNeeded());
+        assertFalse(tree.restructureIfNeeded());
+        assertTrue(tree.depth(1234) <= 1);
+        assertTrue(tree.check());
+        assertEquals(10000, tree.size());
+        assertEquals(Integer.valueOf(9999), tree.get(9999));
+        assertEquals(-1, tree.depth(10000));
+
+        tree.disableAdaptive();
+        tree.delete(1234);
+        tree.put(20000, 20000);
+        assertTrue(tree.check());
+        assertEquals(Integer.valueOf(1235), tree.ceiling(1234));
+    }
+
+    @Test
+    public void changeStreamDeliversBatchesInOrder() throws InterruptedException {
+        RedBlackTree<Integer, String> tree = new RedBlackTree<>();
+        ChangeStream<Integer, String> stream = tree.openChangeStream(4);
+        TreeMap<Integer, String> replica = new TreeMap<>();
+        StringBuilder types = new StringBuilder();
+        long[] next = new long[1];
+        stream.subscribe(batch -> {
+            for (int i = 0; i < batch.size(); i++) {
+                assertEquals(next[0]++, batch.sequence(i));
+                types.append(batch.type(i).name().charAt(0));
+                if (batch.newValue(i) == null) {
+                    replica.remove(batch.key(i));
+                } else {
+                    replica.put(batch.key(i), batch.newValue(i));
+                }
+            }
+        });
+
+        for (int i = 0; i < 10; i++) {
+            tree.put(i, "v" + i);
+        }
+        tree.put(3, "w3");
+        tree.delete(4);
+        tree.delete(42);
+        tree.deleteMin();
+        tree.deleteMax();
+        assertEquals(3, tree.deleteRange(5, 7));
+        assertTrue(stream.awaitDelivered(10, TimeUnit.SECONDS));
+
+        assertEquals("IIIIIIIIIIUDDDDDD", types.toString());
+        assertEquals(17, stream.published());
+        assertEquals(0, stream.lag());
+        assertEquals(tree.size(), replica.size());
+        for (Integer key : tree.keys()) {
+            assertEquals(tree.get(key), replica.get(key));
+        }
+
+        tree.closeChangeStream();
+        assertFalse(stream.isOpen());
+        tree.put(100, "v100");
+        assertEquals(17, stream.published());
+    }
+
+    @Test
+    public void failedComputeLeavesNoStaleOldValue() throws InterruptedException {
+        RedBlackTree<Integer, String> tree = new RedBlackTree<>();
+        ChangeStream<Integer, String> stream = tree.openChangeStream(16);
+        StringBuilder changes = new StringBuilder();
+        stream.subscribe(batch -> {
+            for (int i = 0; i < batch.size(); i++) {
+                changes.append(batch.type(i)).append(' ').append(batch.key(i)).append(' ')
+                        .append(batch.oldValue(i)).append(';');
+            }
+        });
+        tree.put(1, "x");
+        try {
+            tree.compute(1, (k, v) -> {
+                throw new IllegalStateException("compute failed");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("compute failed", e.getMessage());
+        }
+        tree.put(2, "y");
+        assertTrue(stream.awaitDelivered(10, TimeUnit.SECONDS));
+        assertEquals("INSERT 1 null;INSERT 2 null;", changes.toString());
+        assertEquals("x", tree.get(1));
+        assertTrue(tree.check());
+        tree.closeChangeStream();
+    }
+
+    @Test
+    public void changeStreamSurvivesFailingListenersAndWakesFromIdle() throws InterruptedException {
+        RedBlackTree<Integer, String> tree = new RedBlackTree<>();
+        ChangeStream<Integer, String> stream = tree.openChangeStream(16);
+        CountDownLatch received = new CountDownLatch(3);
+        stream.subscribe(batch -> {
+            throw new Error("listener failed");
+        });
+        stream.subscribe(batch -> {
+            for (int i = 0; i < batch.size(); i++) {
+                received.countDown();
+            }
+        });
+
+        tree.put(1, "v1");
+        tree.put(2, "v2");
+        // 等投递线程转入无限期休眠，再由单次写入唤醒
+        Thread.sleep(50);
+        tree.put(3, "v3");
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertTrue(stream.isOpen());
+        assertTrue(stream.errors() >= 2);
+        tree.closeChangeStream();
+    }
+
     public static int[] randomCommon(int min, int max, int n){
         if (n > (max - min + 1) || max < min) {
             return null;
@@ -0,0 +1,238 @@
+package com.pseudoyu.tree.rb;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.function.Function;
+
+/**
+ * 按值派生出的次序组织的二级索引，由 {@link RedBlackTree#addIndex(Function)} 创建。
+ * <p>
+ * 索引内部是一棵以（二级键，主键）为键的红黑树，因此二级键相同的条目按主键排序。
+ * 主树的 put、delete 以及 compute 系列方法会在同一次调用中同步更新所有索引，
+ * 并且直接使用主树在下降过程中拿到的旧值，不需要额外的查找。
+ * 提取函数返回 null 的值不会进入索引。
+ *
+ * @param <S>     二级键的类型
+ * @param <Key>   主键的类型
+ * @param <Value> 值的类型
+ */
+public class SecondaryIndex<S extends Comparable<S>, Key extends Comparable<Key>, Value> {
+
+    private final Function<? super Value, ? extends S> extractor;          // 从值中提取二级键
+    private final RedBlackTree<Entry<S, Key>, Value> tree = new RedBlackTree<>(); // 按（二级键，主键）排序的条目
+
+    SecondaryIndex(Function<? super Value, ? extends S> extractor) {
+        this.extractor = extractor;
+    }
+
+    /**
+     * 主树中键 key 的值从 oldVal 变为 newVal 时更新索引；null 表示不存在。
+     *
+     * @param key    主键
+     * @param oldVal 旧值
+     * @param newVal 新值
+     */
+    void update(Key key, Value oldVal, Value newVal) {
+        S oldS = oldVal == null ? null : extractor.apply(oldVal);
+        S newS = newVal == null ? null : extractor.apply(newVal);
+        if (oldS != null && (newS == null || oldS.compareTo(newS) != 0)) {
+            tree.delete(new Entry<>(oldS, key, 0));
+        }
+        if (newS != null) {
+            tree.put(new Entry<>(newS, key, 0), newVal);
+        }
+    }
+
+    /**
+     * 返回索引中的条目数量。
+     *
+     * @return 条目数量
+     */
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * 判断索引是否为空。
+     *
+     * @return 如果为空则返回 true
+     */
+    public boolean isEmpty() {
+        return tree.isEmpty();
+    }
+
+    /**
+     * 返回二级键最小的条目的主键。
+     *
+     * @return 主键
+     * @throws java.util.NoSuchElementException 如果索引为空
+     */
+    public Key min() {
+        return tree.min().key;
+    }
+
+    /**
+     * 返回二级键最大的条目的主键。
+     *
+     * @return 主键
+     * @throws java.util.NoSuchElementException 如果索引为空
+     */
+    public Key max() {
+        return tree.max().key;
+    }
+
+    /**
+     * 返回二级键小于等于 s 的最后一个条目的主键。
+     *
+     * @param s 二级键
+     * @return 主键；如果不存在则返回 null
+     * @throws java.util.NoSuchElementException 如果索引为空
+     * @throws IllegalArgumentException         如果 s 为 null
+     */
+    public Key floor(S s) {
+        if (s == null) {
+            throw new IllegalArgumentException("argument to floor() is null");
+        }
+        Entry<S, Key> e = tree.floor(new Entry<>(s, null, 1));
+        return e == null ? null : e.key;
+    }
+
+    /**
+     * 返回二级键大于等于 s 的第一个条目的主键。
+     *
+     * @param s 二级键
+     * @return 主键；如果不存在则返回 null
+     * @throws java.util.NoSuchElementException 如果索引为空
+     * @throws IllegalArgumentException         如果 s 为 null
+     */
+    public Key ceiling(S s) {
+        if (s == null) {
+            throw new IllegalArgumentException("argument to ceiling() is null");
+        }
+        Entry<S, Key> e = tree.ceiling(new Entry<>(s, null, -1));
+        return e == null ? null : e.key;
+    }
+
+    /**
+     * 返回二级键严格小于 s 的条目数量。
+     *
+     * @param s 二级键
+     * @return 条目数量
+     * @throws IllegalArgumentException 如果 s 为 null
+     */
+    public int rank(S s) {
+        if (s == null) {
+            throw new IllegalArgumentException("argument to rank() is null");
+        }
+        return tree.rank(new Entry<>(s, null, -1));
+    }
+
+    /**
+     * 返回按二级键排序后第 k 个条目的主键。
+     *
+     * @param k 顺序统计量
+     * @return 主键
+     * @throws IllegalArgumentException 除非 k 在 0 到 n-1 之间
+     */
+    public Key select(int k) {
+        return tree.select(k).key;
+    }
+
+    /**
+     * 返回二级键在 [lo, hi] 之间的条目数量。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 条目数量
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public int size(S lo, S hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to size() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to size() is null");
+        }
+        return tree.size(new Entry<>(lo, null, -1), new Entry<>(hi, null, 1));
+    }
+
+    /**
+     * 按二级键的顺序返回二级键在 [lo, hi] 之间的条目的主键。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 主键
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public Iterable<Key> keys(S lo, S hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to keys() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to keys() is null");
+        }
+        Queue<Key> queue = new LinkedList<>();
+        for (Entry<S, Key> e : tree.keys(new Entry<>(lo, null, -1), new Entry<>(hi, null, 1))) {
+            queue.add(e.key);
+        }
+        return queue;
+    }
+
+    /**
+     * 按二级键的顺序返回所有条目的主键。
+     *
+     * @return 主键
+     */
+    public Iterable<Key> keys() {
+        Queue<Key> queue = new LinkedList<>();
+        for (Entry<S, Key> e : tree.keys()) {
+            queue.add(e.key);
+        }
+        return queue;
+    }
+
+    /**
+     * 索引树的键：先按二级键排序，再按主键排序。
+     * bound 为 -1 或 1 的条目是查询用的哨兵，分别排在同一二级键的所有条目之前或之后。
+     */
+    static final class Entry<S extends Comparable<S>, K extends Comparable<K>> implements Comparable<Entry<S, K>> {
+        private final S s;
+        private final K key;
+        private final int bound;
+
+        Entry(S s, K key, int bound) {
+            this.s = s;
+            this.key = key;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(Entry<S, K> o) {
+            int cmp = s.compareTo(o.s);
+            if (cmp != 0) {
+                return cmp;
+            }
+            if (bound != 0 || o.bound != 0) {
+                return Integer.compare(bound, o.bound);
+            }
+            return key.compareTo(o.key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return bound == e.bound && s.equals(e.s) && (key == null ? e.key == null : key.equals(e.key));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * s.hashCode() + (key == null ? 0 : key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.pseudoyu.tree.rb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 比较单棵加锁的红黑树与 {@link ShardedRedBlackTree} 在不同线程数下的写入吞吐量。
+ * <p>
+ * 用法：{@code java com.pseudoyu.tree.rb.ShardedBenchmark [keyRange] [seconds] [shards]}，
+ * 依次以 1、2、4 …… 64 个线程运行 50% put / 50% delete 的混合负载，每轮输出每秒操作数，
+ * 以及该轮结束时对整个符号表做一次有序遍历的耗时。分片数默认为可用处理器数的 4 倍。
+ */
+public class ShardedBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        final int keyRange = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final int shardCount = args.length > 2 ? Integer.parseInt(args[2]) : 4 * Runtime.getRuntime().availableProcessors();
+
+        System.out.printf("%8s %16s %16s %12s%n", "threads", "locked ops/s", "sharded ops/s", "scan ms");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            final RedBlackTree<Integer, Integer> plain = new RedBlackTree<>();
+            final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            long locked = run(threads, seconds, () -> {
+                int key = ThreadLocalRandom.current().nextInt(keyRange);
+                lock.writeLock().lock();
+                try {
+                    if ((key & 1) == 0) {
+                        plain.put(key, key);
+                    } else {
+                        plain.delete(key - 1);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            });
+
+            final ShardedRedBlackTree<Integer, Integer> sharded = new ShardedRedBlackTree<>(shardCount);
+            long partitioned = run(threads, seconds, () -> {
+                int key = ThreadLocalRandom.current().nextInt(keyRange);
+                if ((key & 1) == 0) {
+                    sharded.put(key, key);
+                } else {
+                    sharded.delete(key - 1);
+                }
+            });
+
+            long start = System.nanoTime();
+            long n = 0;
+            for (Integer ignored : sharded.keys()) {
+                n++;
+            }
+            double scan = (System.nanoTime() - start) / 1e6;
+            if (n != sharded.size()) {
+                throw new IllegalStateException("scan returned " + n + " keys, expected " + sharded.size());
+            }
+
+            System.out.printf("%8d %16d %16d %12.1f%n", threads, locked / seconds, partitioned / seconds, scan);
+        }
+    }
+
+    // 用给定数量的线程重复执行操作，返回总操作数
+    private static long run(int threads, int seconds, final Runnable op) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final LongAdder ops = new LongAdder();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                long n = 0;
+                while (!stop.get()) {
+                    op.run();
+                    n++;
+                }
+                ops.add(n);
+                done.countDown();
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        done.await();
+        return ops.sum();
+    }
+}
@@ -0,0 +1,639 @@
+package com.pseudoyu.tree.rb;
+
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 按键区间分片的有序符号表。
+ * <p>
+ * 键空间被划分为 N 个连续区间，每个区间由一棵独立的 {@link RedBlackTree} 保存，并有自己的读写锁，
+ * 因此落在不同分片上的读写操作可以并行执行。分片 i 保存区间 [splits[i-1], splits[i]) 内的键，
+ * splits[-1] 视为负无穷，值为 null 的分割点视为正无穷。
+ * <p>
+ * 分割点保存在一个不可变数组中，通过 volatile 字段整体替换。单键操作读取当前的分割点数组定位分片，
+ * 只获取该分片的锁，再确认分割点数组没有被替换；替换只会在持有全部分片写锁时发生，
+ * 所以确认通过就说明分片仍然负责这个键，否则重新定位。单键操作之间不共享任何锁或计数器。
+ * <p>
+ * 某个分片的大小超出平均值一定比例（或低于平均值一定比例）时，修改它的线程会触发 {@link #rebalance()}：
+ * 按各分片的大小计算新的分割点，借助 {@link RedBlackTree} 的分裂与合并在相邻分片之间整段移动键区间，
+ * 每次移动的代价为 O(log n)，与移动的键数无关。
+ * 有序遍历、{@code rank} 与 {@code select} 借助各分片的计数在分片之间定位，结果与单棵树一致。
+ * <p>
+ * 加锁顺序固定为按下标从小到大获取分片锁，因此不会死锁。
+ */
+public class ShardedRedBlackTree<Key extends Comparable<Key>, Value> {
+
+    // 默认的分片数量
+    private static final int DEFAULT_SHARDS = 16;
+
+    // 分片大小允许偏离平均值的最小容差
+    private static final int MIN_TOLERANCE = 16;
+
+    private final RedBlackTree<Key, Value>[] shards;          // 各分片
+    private final ReentrantReadWriteLock[] locks;             // 各分片的读写锁
+    private volatile Key[] splits;                            // 分片之间的分割点，只整体替换，不原地修改
+    private final AtomicBoolean rebalancing = new AtomicBoolean(); // 是否已有线程在调整分割点
+
+    // 分片大小超过 growLimit 或低于 shrinkLimit 时触发调整，每次调整之后按新的平均值重新计算
+    private volatile int growLimit = MIN_TOLERANCE;
+    private volatile int shrinkLimit = -1;
+
+    /**
+     * 初始化一个使用默认分片数量的空符号表。
+     */
+    public ShardedRedBlackTree() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * 初始化一个空的符号表。
+     *
+     * @param shardCount 分片数量
+     * @throws IllegalArgumentException 如果分片数量小于 1
+     */
+    public ShardedRedBlackTree(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shard count must be positive: " + shardCount);
+        }
+        shards = newShards(shardCount);
+        locks = new ReentrantReadWriteLock[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new RedBlackTree<>();
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        // 初始时所有分割点都是正无穷，所有键都落在第一个分片，第一个分片超过 growLimit 时开始分摊
+        splits = newKeys(shardCount - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>, V> RedBlackTree<K, V>[] newShards(int n) {
+        return (RedBlackTree<K, V>[]) new RedBlackTree<?, ?>[n];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>> K[] newKeys(int n) {
+        return (K[]) new Comparable<?>[n];
+    }
+
+    /**
+     * 返回分片数量。
+     *
+     * @return 分片数量
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * 返回第 i 个分片中的键值对数量。
+     *
+     * @param i 分片下标
+     * @return 该分片的键值对数量
+     */
+    int shardSize(int i) {
+        locks[i].readLock().lock();
+        try {
+            return shards[i].size();
+        } finally {
+            locks[i].readLock().unlock();
+        }
+    }
+
+    /**
+     * 在给定的分割点数组中查找负责给定键的分片下标。
+     *
+     * @param bounds 分割点数组
+     * @param key    键
+     * @return 分片下标
+     */
+    private int route(Key[] bounds, Key key) {
+        // 分割点单调不减，null（正无穷）只会出现在末尾，因此可以二分查找第一个大于 key 的分割点
+        int lo = 0, hi = bounds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (bounds[mid] == null || key.compareTo(bounds[mid]) < 0) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    // 返回负责给定键的分片下标；调用方必须持有全部分片的锁，此时分割点不会变化
+    private int route(Key key) {
+        return route(splits, key);
+    }
+
+    /***************************************************************************
+     *  单分片操作。
+     ***************************************************************************/
+
+    /**
+     * 返回与给定键关联的值。
+     *
+     * @param key 要查询的键
+     * @return 与该键关联的值；如果不存在则返回 null
+     * @throws IllegalArgumentException 如果给定的键为 null
+     */
+    public Value get(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to get() is null");
+        }
+        while (true) {
+            Key[] bounds = splits;
+            int i = route(bounds, key);
+            locks[i].readLock().lock();
+            try {
+                // 加锁期间分割点没有被替换，说明分片 i 仍然负责 key
+                if (bounds == splits) {
+                    return shards[i].get(key);
+                }
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * 判断此符号表是否包含给定的键。
+     *
+     * @param key 要检查的键
+     * @return 如果包含则返回 true
+     * @throws IllegalArgumentException 如果给定的键为 null
+     */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    /**
+     * 将指定的键值对插入到符号表中；如果值为 null，则删除该键。
+     *
+     * @param key 键
+     * @param val 值
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public void put(Key key, Value val) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to put() is null");
+        }
+        while (true) {
+            Key[] bounds = splits;
+            int i = route(bounds, key);
+            int n;
+            locks[i].writeLock().lock();
+            try {
+                if (bounds != splits) {
+                    continue;
+                }
+                shards[i].put(key, val);
+                n = shards[i].size();
+            } finally {
+                locks[i].writeLock().unlock();
+            }
+            maybeRebalance(n);
+            return;
+        }
+    }
+
+    /**
+     * 从符号表中删除指定的键（如果存在）。
+     *
+     * @param key 键
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public void delete(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to delete() is null");
+        }
+        while (true) {
+            Key[] bounds = splits;
+            int i = route(bounds, key);
+            int n;
+            locks[i].writeLock().lock();
+            try {
+                if (bounds != splits) {
+                    continue;
+                }
+                shards[i].delete(key);
+                n = shards[i].size();
+            } finally {
+                locks[i].writeLock().unlock();
+            }
+            maybeRebalance(n);
+            return;
+        }
+    }
+
+    /***************************************************************************
+     *  跨分片操作。
+     ***************************************************************************/
+
+    // 按下标顺序获取所有分片的读锁，得到一致的快照；持有期间分割点不会变化
+    private void lockAllRead() {
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.readLock().lock();
+        }
+    }
+
+    private void unlockAllRead() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].readLock().unlock();
+        }
+    }
+
+    /**
+     * 返回此符号表中的键值对数量。
+     *
+     * @return 键值对数量
+     */
+    public int size() {
+        lockAllRead();
+        try {
+            int n = 0;
+            for (RedBlackTree<Key, Value> shard : shards) {
+                n += shard.size();
+            }
+            return n;
+        } finally {
+            unlockAllRead();
+        }
+    }
+
+    /**
+     * 判断此符号表是否为空。
+     *
+     * @return 如果为空则返回 true
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * 返回最小的键。
+     *
+     * @return 最小的键
+     * @throws NoSuchElementException 如果符号表为空
+     */
+    public Key min() {
+        lockAllRead();
+        try {
+            for (RedBlackTree<Key, Value> shard : shards) {
+                if (!shard.isEmpty()) {
+                    return shard.min();
+                }
+            }
+            throw new NoSuchElementException("called min() with empty symbol table");
+        } finally {
+            unlockAllRead();
+        }
+    }
+
+    /**
+     * 返回最大的键。
+     *
+     * @return 最大的键
+     * @throws NoSuchElementException 如果符号表为空
+     */
+    public Key max() {
+        lockAllRead();
+        try {
+            for (int i = shards.length - 1; i >= 0; i--) {
+                if (!shards[i].isEmpty()) {
+                    return shards[i].max();
+                }
+            }
+            throw new NoSuchElementException("called max() with empty symbol table");
+        } finally {
+            unlockAllRead();
+        }
+    }
+
+    /**
+     * 返回小于等于给定键的最大键。
+     *
+     * @param key 键
+     * @return 小于等于 key 的最大键；如果不存在则返回 null
+     * @throws NoSuchElementException   如果符号表为空
+     * @throws IllegalArgumentException 如果 key 为 null
+     */
+    public Key floor(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to floor() is null");
+        }
+        lockAllRead();
+        try {
+            boolean empty = true;
+            for (int i = route(key); i >= 0; i--) {
+                if (shards[i].isEmpty()) {
+                    continue;
+                }
+                empty = false;
+                Key x = shards[i].floor(key);
+                if (x != null) {
+                    return x;
+                }
+            }
+            if (empty && isEmptyLocked()) {
+                throw new NoSuchElementException("called floor() with empty symbol table");
+            }
+            return null;
+        } finally {
+            unlockAllRead();
+        }
+    }
+
+    /**
+     * 返回大于等于给定键的最小键。
+     *
+     * @param key 键
+     * @return 大于等于 key 的最小键；如果不存在则返回 null
+     * @throws NoSuchElementException   如果符号表为空
+     * @throws IllegalArgumentException 如果 key 为 null
+     */
+    public Key ceiling(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to ceiling() is null");
+        }
+        lockAllRead();
+        try {
+            boolean empty = true;
+            for (int i = route(key); i < shards.length; i++) {
+                if (shards[i].isEmpty()) {
+                    continue;
+                }
+                empty = false;
+                Key x = shards[i].ceiling(key);
+                if (x != null) {
+                    return x;
+                }
+            }
+            if (empty && isEmptyLocked()) {
+                throw new NoSuchElementException("called ceiling() with empty symbol table");
+            }
+            return null;
+        } finally {
+            unlockAllRead();
+        }
+    }
+
+    // 在已持有所有读锁的情况下判断符号表是否为空
+    private boolean isEmptyLocked() {
+        for (RedBlackTree<Key, Value> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 返回严格小于给定键的键的数量。
+     *
+     * @param key 键
+     * @return 严格小于 key 的键的数量
+     * @throws IllegalArgumentException 如果 key 为 null
+     */
+    public int rank(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to rank() is null");
+        }
+        lockAllRead();
+        try {
+            int i = route(key);
+            int r = 0;
+            // 前面分片中的键都小于 key，直接累加它们的计数
+            for (int j = 0; j < i; j++) {
+                r += shards[j].size();
+            }
+            return r + shards[i].rank(key);
+        } finally {
+            unlockAllRead();
+        }
+    }
+
+    /**
+     * 返回第 k 小的键。
+     *
+     * @param k 顺序统计量
+     * @return 第 k 小的键
+     * @throws IllegalArgumentException 除非 k 在 0 到 n-1 之间
+     */
+    public Key select(int k) {
+        lockAllRead();
+        try {
+            if (k >= 0) {
+                int rest = k;
+                for (RedBlackTree<Key, Value> shard : shards) {
+                    int n = shard.size();
+                    if (rest < n) {
+                        return shard.select(rest);
+                    }
+                    rest -= n;
+                }
+            }
+            throw new IllegalArgumentException("called select() with invalid argument: " + k);
+        } finally {
+            unlockAllRead();
+        }
+    }
+
+    /**
+     * 按顺序返回所有的键。
+     *
+     * @return 所有的键
+     */
+    public Iterable<Key> keys() {
+        Queue<Key> queue = new LinkedList<>();
+        lockAllRead();
+        try {
+            for (RedBlackTree<Key, Value> shard : shards) {
+                for (Key key : shard.keys()) {
+                    queue.add(key);
+                }
+            }
+        } finally {
+            unlockAllRead();
+        }
+        return queue;
+    }
+
+    /**
+     * 按顺序返回区间 [lo, hi] 内的所有键。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 区间内的所有键
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public Iterable<Key> keys(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to keys() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to keys() is null");
+        }
+        Queue<Key> queue = new LinkedList<>();
+        lockAllRead();
+        try {
+            // 只需要访问与区间重叠的分片
+            for (int i = route(lo), last = route(hi); i <= last; i++) {
+                for (Key key : shards[i].keys(lo, hi)) {
+                    queue.add(key);
+                }
+            }
+        } finally {
+            unlockAllRead();
+        }
+        return queue;
+    }
+
+    /**
+     * 返回区间 [lo, hi] 内的键的数量。
+     *
+     * @param lo 最小端点
+     * @param hi 最大端点
+     * @return 区间内的键的数量
+     * @throws IllegalArgumentException 如果 lo 或 hi 为 null
+     */
+    public int size(Key lo, Key hi) {
+        if (lo == null) {
+            throw new IllegalArgumentException("first argument to size() is null");
+        }
+        if (hi == null) {
+            throw new IllegalArgumentException("second argument to size() is null");
+        }
+        if (lo.compareTo(hi) > 0) {
+            return 0;
+        }
+        lockAllRead();
+        try {
+            int first = route(lo), last = route(hi);
+            if (first == last) {
+                return shards[first].size(lo, hi);
+            }
+            // 两端分片做区间计数，中间的分片整体落在区间内
+            int n = shards[first].size() - shards[first].rank(lo);
+            for (int i = first + 1; i < last; i++) {
+                n += shards[i].size();
+            }
+            return n + shards[last].rank(hi) + (shards[last].contains(hi) ? 1 : 0);
+        } finally {
+            unlockAllRead();
+        }
+    }
+
+    /***************************************************************************
+     *  分割点调整。
+     ***************************************************************************/
+
+    // 修改分片之后检查它的大小是否越过阈值；只有越过阈值的线程才会竞争调整的资格
+    private void maybeRebalance(int shardSize) {
+        if (shards.length > 1 && (shardSize > growLimit || shardSize < shrinkLimit)
+                && rebalancing.compareAndSet(false, true)) {
+            try {
+                rebalanceLocked(false);
+            } finally {
+                rebalancing.set(false);
+            }
+        }
+    }
+
+    /**
+     * 根据各分片的大小移动分割点，使每个分片的键数量接近平均值。
+     * 调整期间持有全部分片的写锁，但每次移动都是 O(log n) 的整段分裂与合并，总代价为 O(N log n)。
+     */
+    public void rebalance() {
+        while (!rebalancing.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+        try {
+            rebalanceLocked(true);
+        } finally {
+            rebalancing.set(false);
+        }
+    }
+
+    // 持有调整资格时获取全部分片的写锁并调整分割点
+    private void rebalanceLocked(boolean force) {
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+        try {
+            int total = 0;
+            for (RedBlackTree<Key, Value> shard : shards) {
+                total += shard.size();
+            }
+            int target = total / shards.length;
+            if (force || isSkewed(target + tolerance(target), target - tolerance(target))) {
+                redistribute(total);
+            }
+            growLimit = target + tolerance(target);
+            shrinkLimit = target - tolerance(target);
+        } finally {
+            for (int i = locks.length - 1; i >= 0; i--) {
+                locks[i].writeLock().unlock();
+            }
+        }
+    }
+
+    private static int tolerance(int target) {
+        return Math.max(MIN_TOLERANCE, target / 2);
+    }
+
+    // 判断是否有分片的大小超出 [low, high]
+    private boolean isSkewed(int high, int low) {
+        for (RedBlackTree<Key, Value> shard : shards) {
+            if (shard.size() > high || shard.size() < low) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从左到右逐个确定分片的内容：分片 i 应当恰好保存排名在 [total*i/N, total*(i+1)/N) 内的键。
+     * 多出来的键整段分裂出去并入右边的分片，不足的键从右边第一个非空分片整段分裂过来。
+     * 完成后按各分片的最小键重新计算分割点，并整体替换分割点数组。调用方必须持有全部分片的写锁。
+     *
+     * @param total 键的总数
+     */
+    private void redistribute(int total) {
+        int n = shards.length;
+        for (int i = 0; i < n - 1; i++) {
+            RedBlackTree<Key, Value> shard = shards[i];
+            int want = (int) ((long) total * (i + 1) / n - (long) total * i / n);
+            if (shard.size() > want) {
+                shards[i + 1].absorb(shard.splitOff(shard.select(want)));
+            }
+            for (int j = i + 1; j < n && shard.size() < want; j++) {
+                RedBlackTree<Key, Value> donor = shards[j];
+                if (donor.isEmpty()) {
+                    continue;
+                }
+                int missing = want - shard.size();
+                if (donor.size() <= missing) {
+                    shard.absorb(donor.splitOff(donor.min()));
+                } else {
+                    RedBlackTree<Key, Value> rest = donor.splitOff(donor.select(missing));
+                    shard.absorb(donor.splitOff(donor.min()));
+                    donor.absorb(rest);
+                }
+            }
+        }
+
+        // 分割点 i 取右边第一个非空分片的最小键；右边都为空时为正无穷，新的大键留在最后一个非空分片
+        Key[] bounds = newKeys(n - 1);
+        Key next = null;
+        for (int i = n - 2; i >= 0; i--) {
+            if (!shards[i + 1].isEmpty()) {
+                next = shards[i + 1].min();
+            }
+            bounds[i] = next;
+        }
+        splits = bounds;
+    }
+}
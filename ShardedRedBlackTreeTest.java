@@ -0,0 +1,96 @@
+package com.pseudoyu.tree.rb;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedRedBlackTreeTest {
+
+    @Test
+    public void concurrentWritesKeepOrder() throws InterruptedException {
+        final ShardedRedBlackTree<Integer, Integer> tree = new ShardedRedBlackTree<>(8);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = offset; i < 40000; i += 4) {
+                    tree.put(i, i);
+                    if (i % 3 == 0) {
+                        tree.delete(i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        tree.rebalance();
+
+        int expected = 0;
+        Iterator<Integer> it = tree.keys().iterator();
+        for (int i = 0; i < 40000; i++) {
+            if (i % 3 == 0) {
+                assertFalse(tree.contains(i));
+                continue;
+            }
+            assertEquals(expected, tree.rank(i));
+            assertEquals(Integer.valueOf(i), tree.select(expected));
+            assertEquals(Integer.valueOf(i), it.next());
+            expected++;
+        }
+        assertFalse(it.hasNext());
+        assertEquals(expected, tree.size());
+        assertEquals(Integer.valueOf(1), tree.min());
+        assertEquals(Integer.valueOf(39998), tree.max());
+    }
+
+    @Test
+    public void sizeThresholdsSpreadKeysWithoutManualRebalance() {
+        ShardedRedBlackTree<Integer, Integer> tree = new ShardedRedBlackTree<>(8);
+        for (int i = 0; i < 20000; i++) {
+            tree.put(i, i);
+        }
+        for (int i = 0; i < tree.shardCount(); i++) {
+            int n = tree.shardSize(i);
+            assertTrue(n > 0 && n <= 20000 / 8 * 3 / 2 + 16);
+        }
+        for (int i = 0; i < 15000; i++) {
+            tree.delete(i);
+        }
+        assertEquals(5000, tree.size());
+        assertEquals(Integer.valueOf(15000), tree.min());
+        assertEquals(Integer.valueOf(17500), tree.select(2500));
+        assertTrue(tree.shardSize(0) > 0);
+        for (int i = 15000; i < 20000; i++) {
+            assertEquals(Integer.valueOf(i), tree.get(i));
+        }
+    }
+
+    @Test
+    public void crossShardQueries() {
+        ShardedRedBlackTree<Integer, Integer> tree = new ShardedRedBlackTree<>(4);
+        for (int i = 0; i < 1000; i += 10) {
+            tree.put(i, i);
+        }
+        tree.rebalance();
+
+        assertEquals(Integer.valueOf(250), tree.floor(255));
+        assertEquals(Integer.valueOf(260), tree.ceiling(255));
+        assertNull(tree.floor(-1));
+        assertNull(tree.ceiling(991));
+        assertEquals(51, tree.size(0, 500));
+
+        int n = 0;
+        for (Integer key : tree.keys(95, 705)) {
+            assertTrue(key >= 95 && key <= 705);
+            n++;
+        }
+        assertEquals(61, n);
+    }
+}
@@ -0,0 +1,329 @@
+package com.pseudoyu.tree.rb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 以字符串为键的有序符号表，支持按前缀查询。
+ * <p>
+ * 键以 UTF-8 字节数组的形式保存在一棵 {@link RedBlackTree} 中，按无符号字节的字典序排序，
+ * 这与按 Unicode 码点排序一致（{@link String#compareTo} 按 UTF-16 代码单元排序，
+ * 两者只在增补平面字符与 U+E000 到 U+FFFF 之间的字符比较时不同）。
+ * ASCII 键每个字符只占一个字节。
+ * <p>
+ * {@link #putAllSorted(String[], Object[])} 对有序批量导入的键做前缀压缩：每隔
+ * {@value #RESTART_INTERVAL} 个键保存一个完整的重启点，其余的键只保存与重启点不同的后缀，
+ * 公共前缀由同一组的键共享；批量足够大时整棵树在线性时间内按顺序重建，而不是逐个插入。
+ * <p>
+ * {@link #keys()} 与 {@link #prefixScan(String)} 在遍历时才沿树逐个取出并解码键，不生成中间列表；
+ * 遍历期间不能修改符号表。
+ *
+ * @param <Value> 值的类型
+ */
+public class StringRedBlackTree<Value> {
+
+    // 前缀压缩时两个重启点之间的键数
+    static final int RESTART_INTERVAL = 16;
+
+    private final RedBlackTree<Utf8Key, Value> tree = new RedBlackTree<>();
+
+    /**
+     * 返回键值对的数量。
+     *
+     * @return 键值对的数量
+     */
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * 判断符号表是否为空。
+     *
+     * @return 如果为空则返回 true
+     */
+    public boolean isEmpty() {
+        return tree.isEmpty();
+    }
+
+    /**
+     * 返回与给定键关联的值。
+     *
+     * @param key 键
+     * @return 与该键关联的值；如果键不存在则返回 null
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public Value get(String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to get() is null");
+        }
+        return tree.get(Utf8Key.of(key));
+    }
+
+    /**
+     * 判断符号表是否包含给定的键。
+     *
+     * @param key 键
+     * @return 如果包含则返回 true
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    /**
+     * 插入键值对；如果键已存在则覆盖旧值，如果值为 null 则删除该键。
+     *
+     * @param key 键
+     * @param val 值
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public void put(String key, Value val) {
+        if (key == null) {
+            throw new IllegalArgumentException("first argument to put() is null");
+        }
+        tree.put(Utf8Key.of(key), val);
+    }
+
+    /**
+     * 删除给定的键及其关联的值（如果存在）。
+     *
+     * @param key 键
+     * @throws IllegalArgumentException 如果键为 null
+     */
+    public void delete(String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("argument to delete() is null");
+        }
+        tree.delete(Utf8Key.of(key));
+    }
+
+    /**
+     * 按顺序批量插入键值对，并对键做前缀压缩。键必须按 UTF-8 字节序严格递增。
+     * 参数在插入任何键之前全部检查完毕，检查失败时符号表保持不变。
+     *
+     * @param keys 严格递增的键
+     * @param vals 与键一一对应的值，不能为 null
+     * @throws IllegalArgumentException 如果参数为 null、长度不一致、包含 null，或键不是严格递增的
+     */
+    public void putAllSorted(String[] keys, Value[] vals) {
+        if (keys == null || vals == null) {
+            throw new IllegalArgumentException("argument to putAllSorted() is null");
+        }
+        if (keys.length != vals.length) {
+            throw new IllegalArgumentException("keys and values to putAllSorted() differ in length");
+        }
+        Utf8Key[] encoded = new Utf8Key[keys.length];
+        byte[] anchor = null;
+        Utf8Key last = null;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null || vals[i] == null) {
+                throw new IllegalArgumentException("argument to putAllSorted() contains null");
+            }
+            byte[] bytes = keys[i].getBytes(StandardCharsets.UTF_8);
+            Utf8Key key;
+            if (i % RESTART_INTERVAL == 0) {
+                anchor = bytes;
+                key = new Utf8Key(null, 0, bytes);
+            } else {
+                int shared = commonPrefix(anchor, bytes);
+                key = new Utf8Key(anchor, shared, Arrays.copyOfRange(bytes, shared, bytes.length));
+            }
+            if (last != null && last.compareTo(key) >= 0) {
+                throw new IllegalArgumentException("keys to putAllSorted() are not strictly increasing at index " + i);
+            }
+            encoded[i] = key;
+            last = key;
+        }
+        tree.putAllSorted(encoded, vals);
+    }
+
+    /**
+     * 返回最小的键。
+     *
+     * @return 最小的键
+     * @throws NoSuchElementException 如果符号表为空
+     */
+    public String min() {
+        return tree.min().toString();
+    }
+
+    /**
+     * 返回最大的键。
+     *
+     * @return 最大的键
+     * @throws NoSuchElementException 如果符号表为空
+     */
+    public String max() {
+        return tree.max().toString();
+    }
+
+    /**
+     * 按顺序返回所有的键。
+     *
+     * @return 所有的键
+     */
+    public Iterable<String> keys() {
+        // 每次遍历时才确定起点，遍历看到的是开始遍历时的符号表
+        return () -> tree.isEmpty()
+                ? Collections.<String>emptyIterator()
+                : decode(tree.ascending(tree.min(), null));
+    }
+
+    /**
+     * 按顺序返回以给定前缀开头的所有键。遍历时从前缀的位置开始沿树逐个取出，到前缀的后继为止，
+     * 每个键在取出时才解码为字符串。
+     *
+     * @param prefix 前缀
+     * @return 以该前缀开头的键
+     * @throws IllegalArgumentException 如果前缀为 null
+     */
+    public Iterable<String> prefixScan(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("argument to prefixScan() is null");
+        }
+        Utf8Key lo = Utf8Key.of(prefix);
+        Utf8Key hi = successor(lo);
+        return () -> decode(tree.ascending(lo, hi));
+    }
+
+    /**
+     * 返回以给定前缀开头的键的数量，借助两次 rank 在 O(log n) 时间内完成。
+     *
+     * @param prefix 前缀
+     * @return 以该前缀开头的键的数量
+     * @throws IllegalArgumentException 如果前缀为 null
+     */
+    public int countPrefix(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("argument to countPrefix() is null");
+        }
+        Utf8Key lo = Utf8Key.of(prefix);
+        return count(lo, successor(lo));
+    }
+
+    // 返回区间 [lo, hi) 中的键数，hi 为 null 表示正无穷
+    private int count(Utf8Key lo, Utf8Key hi) {
+        return (hi == null ? tree.size() : tree.rank(hi)) - tree.rank(lo);
+    }
+
+    /**
+     * 返回大于所有以 prefix 开头的字节串的最小字节串：去掉末尾的 0xFF 后把最后一个字节加一。
+     *
+     * @param prefix 前缀
+     * @return 前缀的后继；如果前缀为空或全为 0xFF 则返回 null，表示正无穷
+     */
+    private static Utf8Key successor(Utf8Key prefix) {
+        byte[] bytes = prefix.bytes();
+        int n = bytes.length;
+        while (n > 0 && bytes[n - 1] == (byte) 0xFF) {
+            n--;
+        }
+        if (n == 0) {
+            return null;
+        }
+        byte[] next = Arrays.copyOf(bytes, n);
+        next[n - 1]++;
+        return new Utf8Key(null, 0, next);
+    }
+
+    // 返回两个字节数组的公共前缀长度
+    private static int commonPrefix(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < n && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    // 把键的迭代器包装为按需解码的字符串迭代器
+    private static Iterator<String> decode(Iterator<Utf8Key> keys) {
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return keys.next().toString();
+            }
+        };
+    }
+
+    /**
+     * UTF-8 编码的键。前 shared 个字节来自共享的重启点 anchor，其余字节保存在 suffix 中；
+     * 未做前缀压缩的键 anchor 为 null，shared 为 0。
+     */
+    static final class Utf8Key implements Comparable<Utf8Key> {
+        private final byte[] anchor;
+        private final int shared;
+        private final byte[] suffix;
+
+        Utf8Key(byte[] anchor, int shared, byte[] suffix) {
+            this.anchor = anchor;
+            this.shared = shared;
+            this.suffix = suffix;
+        }
+
+        static Utf8Key of(String s) {
+            return new Utf8Key(null, 0, s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        int length() {
+            return shared + suffix.length;
+        }
+
+        int byteAt(int i) {
+            return (i < shared ? anchor[i] : suffix[i - shared]) & 0xFF;
+        }
+
+        byte[] bytes() {
+            if (shared == 0) {
+                return suffix;
+            }
+            byte[] b = Arrays.copyOf(anchor, length());
+            System.arraycopy(suffix, 0, b, shared, suffix.length);
+            return b;
+        }
+
+        @Override
+        public int compareTo(Utf8Key o) {
+            int n = Math.min(length(), o.length());
+            int i = 0;
+            // 共享同一个重启点的两个键，公共部分不需要逐字节比较
+            if (anchor != null && anchor == o.anchor) {
+                i = Math.min(shared, o.shared);
+            }
+            for (; i < n; i++) {
+                int cmp = byteAt(i) - o.byteAt(i);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return length() - o.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Utf8Key && compareTo((Utf8Key) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = 1;
+            for (int i = 0, n = length(); i < n; i++) {
+                h = 31 * h + byteAt(i);
+            }
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
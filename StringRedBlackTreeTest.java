@@ -0,0 +1,97 @@
+package com.pseudoyu.tree.rb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StringRedBlackTreeTest {
+
+    @Test
+    public void prefixQueriesOverFrontCodedKeys() {
+        StringRedBlackTree<Integer> tree = new StringRedBlackTree<>();
+        String[] keys = new String[200];
+        Integer[] vals = new Integer[200];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = String.format("tenant%d/region%d/item%03d", i / 100, i / 20 % 5, i);
+            vals[i] = i;
+        }
+        tree.putAllSorted(keys, vals);
+        tree.put("tenant0/region", -1);
+        tree.put("tenant1/été", -2);
+        tree.put("tenant2", -3);
+
+        assertEquals(203, tree.size());
+        assertEquals(Integer.valueOf(57), tree.get("tenant0/region2/item057"));
+        assertEquals(Integer.valueOf(-2), tree.get("tenant1/été"));
+        assertEquals(101, tree.countPrefix("tenant0/"));
+        assertEquals(20, tree.countPrefix("tenant1/region3/"));
+        assertEquals(1, tree.countPrefix("tenant1/é"));
+        assertEquals(0, tree.countPrefix("tenant3"));
+        assertEquals(203, tree.countPrefix(""));
+
+        StringBuilder scanned = new StringBuilder();
+        for (String key : tree.prefixScan("tenant1/region4/item19")) {
+            scanned.append(key).append(' ');
+        }
+        assertEquals("tenant1/region4/item190 tenant1/region4/item191 tenant1/region4/item192 "
+                + "tenant1/region4/item193 tenant1/region4/item194 tenant1/region4/item195 "
+                + "tenant1/region4/item196 tenant1/region4/item197 tenant1/region4/item198 "
+                + "tenant1/region4/item199 ", scanned.toString());
+
+        tree.delete("tenant0/region2/item057");
+        assertNull(tree.get("tenant0/region2/item057"));
+        assertEquals(19, tree.countPrefix("tenant0/region2/"));
+        assertEquals("tenant0/region", tree.min());
+        assertEquals("tenant2", tree.max());
+
+        // 向非空的表批量导入，已有的键被覆盖，顺序遍历包含新旧两部分
+        tree.putAllSorted(new String[]{"tenant0/region", "tenant1/zz", "tenant3"}, new Integer[]{0, 1, 2});
+        assertEquals(204, tree.size());
+        assertEquals(Integer.valueOf(0), tree.get("tenant0/region"));
+        String previous = null;
+        int n = 0;
+        for (String key : tree.keys()) {
+            assertTrue(previous == null || previous.compareTo(key) < 0);
+            previous = key;
+            n++;
+        }
+        assertEquals(204, n);
+        assertEquals("tenant3", previous);
+    }
+
+    @Test
+    public void scansReflectTheTableWhenIterated() {
+        StringRedBlackTree<Integer> tree = new StringRedBlackTree<>();
+        tree.put("apple", 1);
+        tree.put("apricot", 2);
+        tree.put("banana", 3);
+        Iterable<String> scan = tree.prefixScan("ap");
+        Iterable<String> keys = tree.keys();
+
+        tree.delete("apple");
+        tree.put("aardvark", 4);
+        assertEquals("apricot ", join(scan));
+        assertEquals("aardvark apricot banana ", join(keys));
+
+        tree.delete("aardvark");
+        tree.delete("apricot");
+        tree.delete("banana");
+        assertEquals("", join(scan));
+        assertEquals("", join(keys));
+    }
+
+    private static String join(Iterable<String> keys) {
+        StringBuilder s = new StringBuilder();
+        for (String key : keys) {
+            s.append(key).append(' ');
+        }
+        return s.toString();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putAllSortedRejectsUnsortedKeys() {
+        new StringRedBlackTree<Integer>().putAllSorted(new String[]{"b", "a"}, new Integer[]{1, 2});
+    }
+}